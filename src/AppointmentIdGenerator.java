@@ -0,0 +1,14 @@
+package scheduler.db;
+
+import java.sql.SQLException;
+
+// Source of AppointmentID values. Implementations must hand out IDs that are unique across every process
+// writing to the same database, so an appointment insert never fails on its key.
+public interface AppointmentIdGenerator {
+
+    String nextId() throws SQLException;
+
+    static AppointmentIdGenerator getDefault() {
+        return BlockSequenceIdGenerator.getInstance();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,154 @@
+package scheduler.db;
+
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+// In-memory copy of the Availabilities table: date -> caregivers that are still free on that date.
+// Reads never lock, writers go through add/remove right after their change reached the database.
+// Next to it is a date-ordered summary of how many caregivers are free each day, kept in step by the same
+// add/remove calls, so a range of days is read without touching the caregiver sets.
+public class AvailabilityIndex {
+
+    private static final AvailabilityIndex instance = new AvailabilityIndex();
+
+    private final ConcurrentMap<LocalDate, ConcurrentSkipListSet<String>> byDate = new ConcurrentHashMap<>();
+    // only changed while holding the date's bin in byDate, days without free caregivers have no entry
+    private final ConcurrentNavigableMap<LocalDate, Integer> freeByDate = new ConcurrentSkipListMap<>();
+    private volatile boolean loaded = false;
+
+    private AvailabilityIndex() {
+    }
+
+    public static AvailabilityIndex getInstance() {
+        return instance;
+    }
+
+    // caregivers free on the given date, sorted by username
+    public NavigableSet<String> getCaregivers(LocalDate date) throws SQLException {
+        ensureLoaded();
+        ConcurrentSkipListSet<String> caregivers = byDate.get(date);
+        if (caregivers == null) {
+            return Collections.emptyNavigableSet();
+        }
+        return Collections.unmodifiableNavigableSet(caregivers);
+    }
+
+    public boolean isAvailable(LocalDate date, String caregiver) throws SQLException {
+        ensureLoaded();
+        Set<String> caregivers = byDate.get(date);
+        return caregivers != null && caregivers.contains(caregiver);
+    }
+
+    // number of free caregivers per day from from to to (both inclusive), days with none are left out
+    public NavigableMap<LocalDate, Integer> getFreeCaregiverCounts(LocalDate from, LocalDate to)
+            throws SQLException {
+        ensureLoaded();
+        return Collections.unmodifiableNavigableMap(freeByDate.subMap(from, true, to, true));
+    }
+
+    // writers for the same date serialize on that date's map bin, so an emptied set is never dropped while
+    // another thread is adding to it
+    public void add(LocalDate date, String caregiver) {
+        byDate.compute(date, (k, caregivers) -> {
+            if (caregivers == null) {
+                caregivers = new ConcurrentSkipListSet<>();
+            }
+            if (caregivers.add(caregiver)) {
+                freeByDate.merge(date, 1, Integer::sum);
+            }
+            return caregivers;
+        });
+    }
+
+    public boolean remove(LocalDate date, String caregiver) {
+        boolean[] removed = new boolean[1];
+        byDate.computeIfPresent(date, (k, caregivers) -> {
+            removed[0] = caregivers.remove(caregiver);
+            if (removed[0]) {
+                freeByDate.computeIfPresent(date, (day, free) -> free > 1 ? free - 1 : null);
+            }
+            return caregivers.isEmpty() ? null : caregivers;
+        });
+        return removed[0];
+    }
+
+    public void reload() throws SQLException {
+        synchronized (this) {
+            Map<LocalDate, Set<String>> table = readTable();
+            byDate.clear();
+            freeByDate.clear();
+            for (Map.Entry<LocalDate, Set<String>> entry : table.entrySet()) {
+                byDate.put(entry.getKey(), new ConcurrentSkipListSet<>(entry.getValue()));
+                freeByDate.put(entry.getKey(), entry.getValue().size());
+            }
+            loaded = true;
+        }
+    }
+
+    // Compares the index against the table and returns one line per difference (empty if they agree).
+    // With repair set, the index is replaced by the table contents when they differ.
+    public List<String> verify(boolean repair) throws SQLException {
+        ensureLoaded();
+        Map<LocalDate, Set<String>> table = readTable();
+        List<String> differences = new ArrayList<>();
+        Set<LocalDate> dates = new TreeSet<>(table.keySet());
+        dates.addAll(byDate.keySet());
+        for (LocalDate date : dates) {
+            Set<String> expected = table.getOrDefault(date, Collections.emptySet());
+            Set<String> actual = byDate.getOrDefault(date, new ConcurrentSkipListSet<>());
+            for (String caregiver : expected) {
+                if (!actual.contains(caregiver)) {
+                    differences.add("missing from index: " + date + " " + caregiver);
+                }
+            }
+            for (String caregiver : actual) {
+                if (!expected.contains(caregiver)) {
+                    differences.add("not in table: " + date + " " + caregiver);
+                }
+            }
+        }
+        if (repair && !differences.isEmpty()) {
+            reload();
+        }
+        return differences;
+    }
+
+    private void ensureLoaded() throws SQLException {
+        if (loaded) {
+            return;
+        }
+        synchronized (this) {
+            if (loaded) {
+                return;
+            }
+            // merge rather than replace so that write-through updates made while loading are kept
+            for (Map.Entry<LocalDate, Set<String>> entry : readTable().entrySet()) {
+                for (String caregiver : entry.getValue()) {
+                    add(entry.getKey(), caregiver);
+                }
+            }
+            loaded = true;
+        }
+    }
+
+    private Map<LocalDate, Set<String>> readTable() throws SQLException {
+        Map<LocalDate, Set<String>> table = new HashMap<>();
+        Storage.getDefault().forEachAvailability(
+                (date, caregiver) -> table.computeIfAbsent(date, k -> new TreeSet<>()).add(caregiver));
+        return table;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,79 @@
+package scheduler.db;
+
+import java.sql.SQLException;
+
+// Hands out increasing AppointmentIDs from blocks reserved in the AppointmentIdBlocks table. Each process
+// reserves a whole block with one UPDATE, so blocks never overlap and most IDs cost no round trip at all.
+// IDs are fixed-width base 36 (digits and upper-case letters), which sorts the same way as the numbers under
+// any collation and appends to the end of the clustered index instead of scattering inserts.
+public class BlockSequenceIdGenerator implements AppointmentIdGenerator {
+
+    private static final String SEQUENCE_NAME = "Appointments";
+    private static final int ID_LENGTH = 6;
+    private static final int RADIX = 36;
+    private static final long MAX_VALUE = (long) Math.pow(RADIX, ID_LENGTH) - 1;
+    private static final long DEFAULT_BLOCK_SIZE = 1_000;
+
+    private static final BlockSequenceIdGenerator instance = new BlockSequenceIdGenerator();
+
+    private final String sequence;
+    private final long blockSize;
+    private long next = 0;
+    private long end = 0;
+
+    private BlockSequenceIdGenerator() {
+        this(SEQUENCE_NAME, getBlockSize());
+    }
+
+    // a generator of its own, IdUniquenessCheck runs several side by side the way separate processes would
+    BlockSequenceIdGenerator(String sequence, long blockSize) {
+        this.sequence = sequence;
+        this.blockSize = blockSize;
+    }
+
+    private static long getBlockSize() {
+        long size = DEFAULT_BLOCK_SIZE;
+        String setting = System.getenv("AppointmentIdBlockSize");
+        if (setting != null && !setting.isEmpty()) {
+            try {
+                size = Math.max(1, Long.parseLong(setting.trim()));
+            } catch (NumberFormatException e) {
+                System.out.println("Ignoring invalid value for AppointmentIdBlockSize: " + setting);
+            }
+        }
+        return size;
+    }
+
+    public static BlockSequenceIdGenerator getInstance() {
+        return instance;
+    }
+
+    @Override
+    public synchronized String nextId() throws SQLException {
+        if (next >= end) {
+            next = reserveBlock();
+            end = next + blockSize;
+        }
+        return encode(next++);
+    }
+
+    public static String encode(long value) {
+        if (value < 0 || value > MAX_VALUE) {
+            throw new IllegalStateException("Appointment IDs are exhausted");
+        }
+        StringBuilder id = new StringBuilder(Long.toString(value, RADIX).toUpperCase());
+        while (id.length() < ID_LENGTH) {
+            id.insert(0, '0');
+        }
+        return id.toString();
+    }
+
+    // returns the first value of a freshly reserved block
+    private long reserveBlock() throws SQLException {
+        long start = Storage.getDefault().reserveIdBlock(sequence, blockSize);
+        if (start + blockSize - 1 > MAX_VALUE) {
+            throw new IllegalStateException("Appointment IDs are exhausted");
+        }
+        return start;
+    }
+}
\ No newline at end of file
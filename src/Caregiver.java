@@ -1,26 +1,34 @@
 package scheduler.model;
 
-import scheduler.db.ConnectionManager;
+import scheduler.db.AvailabilityIndex;
+import scheduler.db.Storage;
+import scheduler.db.UsernameRegistry;
+import scheduler.util.PasswordHasher;
 import scheduler.util.Util;
 
-import java.sql.*;
-import java.util.Arrays;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
 
 public class Caregiver {
     private final String username;
     private final byte[] salt;
     private final byte[] hash;
+    private final int iterations;
 
     private Caregiver(CaregiverBuilder builder) {
         this.username = builder.username;
         this.salt = builder.salt;
         this.hash = builder.hash;
+        this.iterations = builder.iterations;
     }
 
     private Caregiver(CaregiverGetter getter) {
         this.username = getter.username;
         this.salt = getter.salt;
         this.hash = getter.hash;
+        this.iterations = getter.iterations;
     }
 
     // Getters
@@ -36,50 +44,63 @@ public class Caregiver {
         return hash;
     }
 
-    public void saveToDB() throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
+    public int getIterations() {
+        return iterations;
+    }
 
-        String addCaregiver = "INSERT INTO Caregivers VALUES (? , ?, ?)";
+    public void saveToDB() throws SQLException {
         try {
-            PreparedStatement statement = con.prepareStatement(addCaregiver);
-            statement.setString(1, this.username);
-            statement.setBytes(2, this.salt);
-            statement.setBytes(3, this.hash);
-            statement.executeUpdate();
+            Storage.getDefault().addAccount(Storage.Account.CAREGIVER, this.username, this.salt, this.hash,
+                    this.iterations);
+            UsernameRegistry.caregivers().add(this.username);
         } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
+            // keep the error code, callers tell a taken username apart from other failures
+            throw new SQLException(e.getMessage(), e.getSQLState(), e.getErrorCode());
         }
     }
 
     public void uploadAvailability(Date d) throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
+        try {
+            Storage.getDefault().addAvailability(d, this.username);
+            AvailabilityIndex.getInstance().add(d.toLocalDate(), this.username);
+        } catch (SQLException e) {
+            // keep the state and code, SqlErrors decides from them whether a retry can help
+            throw new SQLException(e.getMessage(), e.getSQLState(), e.getErrorCode(), e);
+        }
+    }
 
-        String addAvailability = "INSERT INTO Availabilities VALUES (? , ?)";
+    // Uploads many dates in one transaction with batched inserts. Dates the caregiver already has are skipped
+    // instead of failing the batch. Returns the number of new availabilities.
+    public int uploadAvailability(Collection<Date> dates) throws SQLException {
+        List<Date> inserted;
         try {
-            PreparedStatement statement = con.prepareStatement(addAvailability);
-            statement.setDate(1, d);
-            statement.setString(2, this.username);
-            statement.executeUpdate();
+            inserted = Storage.getDefault().addAvailabilities(this.username, dates);
         } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
+            throw new SQLException(e.getMessage(), e.getSQLState(), e.getErrorCode(), e);
         }
+
+        AvailabilityIndex index = AvailabilityIndex.getInstance();
+        for (Date d : inserted) {
+            index.add(d.toLocalDate(), this.username);
+        }
+        return inserted.size();
     }
 
     public static class CaregiverBuilder {
         private final String username;
         private final byte[] salt;
         private final byte[] hash;
+        private final int iterations;
 
         public CaregiverBuilder(String username, byte[] salt, byte[] hash) {
+            this(username, salt, hash, Util.HASH_STRENGTH);
+        }
+
+        public CaregiverBuilder(String username, byte[] salt, byte[] hash, int iterations) {
             this.username = username;
             this.salt = salt;
             this.hash = hash;
+            this.iterations = iterations;
         }
 
         public Caregiver build() {
@@ -92,6 +113,7 @@ public class Caregiver {
         private final String password;
         private byte[] salt;
         private byte[] hash;
+        private int iterations;
 
         public CaregiverGetter(String username, String password) {
             this.username = username;
@@ -99,34 +121,51 @@ public class Caregiver {
         }
 
         public Caregiver get() throws SQLException {
-            ConnectionManager cm = new ConnectionManager();
-            Connection con = cm.createConnection();
-
-            String getCaregiver = "SELECT Salt, Hash FROM Caregivers WHERE Username = ?";
+            byte[] salt;
+            byte[] hash;
+            int iterations;
             try {
-                PreparedStatement statement = con.prepareStatement(getCaregiver);
-                statement.setString(1, this.username);
-                ResultSet resultSet = statement.executeQuery();
-                while (resultSet.next()) {
-                    byte[] salt = resultSet.getBytes("Salt");
-                    // we need to call Util.trim() to get rid of the paddings,
-                    // try to remove the use of Util.trim() and you'll see :)
-                    byte[] hash = Util.trim(resultSet.getBytes("Hash"));
-                    // check if the password matches
-                    byte[] calculatedHash = Util.generateHash(password, salt);
-                    if (!Arrays.equals(hash, calculatedHash)) {
-                        return null;
-                    } else {
-                        this.salt = salt;
-                        this.hash = hash;
-                        return new Caregiver(this);
-                    }
+                Storage.Credentials credentials =
+                        Storage.getDefault().getCredentials(Storage.Account.CAREGIVER, this.username);
+                if (credentials == null) {
+                    return null;
                 }
-                return null;
+                salt = credentials.getSalt();
+                // we need to call Util.trim() to get rid of the paddings,
+                // try to remove the use of Util.trim() and you'll see :)
+                hash = Util.trim(credentials.getHash());
+                iterations = PasswordHasher.effectiveIterations(credentials.getIterations());
             } catch (SQLException e) {
                 throw new SQLException();
-            } finally {
-                cm.closeConnection();
+            }
+
+            // check if the password matches, nothing in the storage is held while hashing
+            PasswordHasher hasher = PasswordHasher.getInstance();
+            if (!hasher.verify(password, salt, hash, iterations)) {
+                return null;
+            }
+            this.salt = salt;
+            this.hash = hash;
+            this.iterations = iterations;
+            if (hasher.needsUpgrade(iterations)) {
+                upgradeHash(hasher);
+            }
+            return new Caregiver(this);
+        }
+
+        // re-hashes the password with the configured cost, the login still succeeds if this fails
+        private void upgradeHash(PasswordHasher hasher) {
+            byte[] newSalt = Util.generateSalt();
+            byte[] newHash = hasher.hash(password, newSalt);
+
+            try {
+                Storage.getDefault().updateCredentials(Storage.Account.CAREGIVER, this.username, newSalt, newHash,
+                        hasher.getIterations());
+                this.salt = newSalt;
+                this.hash = newHash;
+                this.iterations = hasher.getIterations();
+            } catch (SQLException e) {
+                e.printStackTrace();
             }
         }
     }
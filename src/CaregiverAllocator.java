@@ -0,0 +1,24 @@
+package scheduler.db;
+
+import java.sql.SQLException;
+import java.util.NavigableSet;
+
+// Decides which of the free caregivers a booking tries first. Taking them in username order sends every
+// concurrent booking for a date to the same row, so the default spreads patients over the caregivers instead.
+// CaregiverAllocation picks the strategy: hash (default), random, least-loaded or alphabetical.
+public interface CaregiverAllocator {
+
+    // the free caregivers in the order they should be tried; patient is null when one order serves a whole batch
+    Iterable<String> order(NavigableSet<String> free, String patient) throws SQLException;
+
+    // called after an appointment with the caregiver was stored or canceled
+    default void booked(String caregiver) {
+    }
+
+    default void released(String caregiver) {
+    }
+
+    static CaregiverAllocator getDefault() {
+        return CaregiverAllocators.getDefault();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,146 @@
+package scheduler.db;
+
+import java.io.IOException;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The strategies behind CaregiverAllocator. Each one copies the free set once per booking, which is cheap next
+// to the round trip that follows, and never drops a caregiver, so a booking only fails when all of them are taken.
+final class CaregiverAllocators {
+
+    // every booking asks for it, so it is picked once up front instead of behind a lock
+    private static final CaregiverAllocator instance = create(System.getenv("CaregiverAllocation"));
+
+    private CaregiverAllocators() {
+    }
+
+    static CaregiverAllocator getDefault() {
+        return instance;
+    }
+
+    private static CaregiverAllocator create(String setting) {
+        String name = setting == null ? "" : setting.trim().toLowerCase(Locale.ROOT);
+        switch (name) {
+            case "":
+            case "hash":
+                return new PatientHash();
+            case "random":
+                return new Shuffled();
+            case "least-loaded":
+                return new LeastLoaded();
+            case "alphabetical":
+                return new Alphabetical();
+            default:
+                System.out.println("Ignoring invalid value for CaregiverAllocation: " + setting);
+                return new PatientHash();
+        }
+    }
+
+    private static List<String> rotated(NavigableSet<String> free, String patient) {
+        List<String> caregivers = new ArrayList<>(free);
+        if (patient != null && caregivers.size() > 1) {
+            int start = Math.floorMod(patient.toLowerCase(Locale.ROOT).hashCode(), caregivers.size());
+            Collections.rotate(caregivers, -start);
+        }
+        return caregivers;
+    }
+
+    // the order reserve always had: first free username
+    static class Alphabetical implements CaregiverAllocator {
+        @Override
+        public Iterable<String> order(NavigableSet<String> free, String patient) {
+            return free;
+        }
+    }
+
+    // Round robin by patient: each patient starts at their own place in the list and walks on from there, so
+    // patients booking the same date at the same time start on different caregivers.
+    static class PatientHash implements CaregiverAllocator {
+        @Override
+        public Iterable<String> order(NavigableSet<String> free, String patient) {
+            return rotated(free, patient);
+        }
+    }
+
+    // a fresh shuffle per booking, also after a collision the next candidates differ between bookings
+    static class Shuffled implements CaregiverAllocator {
+        @Override
+        public Iterable<String> order(NavigableSet<String> free, String patient) {
+            List<String> caregivers = new ArrayList<>(free);
+            Collections.shuffle(caregivers, ThreadLocalRandom.current());
+            return caregivers;
+        }
+    }
+
+    // Caregivers with the fewest upcoming appointments first. The counts are read once from the Appointments
+    // table and then kept up to date by booked() and released(); bookings made by other processes are not seen,
+    // which only makes the spread less even. Equal counts are broken by patient so they do not all collide.
+    static class LeastLoaded implements CaregiverAllocator {
+        private final ConcurrentMap<String, AtomicInteger> load = new ConcurrentHashMap<>();
+        private volatile boolean loaded = false;
+
+        @Override
+        public Iterable<String> order(NavigableSet<String> free, String patient)
+                throws SQLException {
+            ensureLoaded();
+            List<String> caregivers = rotated(free, patient);
+            // sorted on a copy of the counts, bookings on other threads keep changing them
+            Map<String, Integer> counts = new HashMap<>();
+            for (String caregiver : caregivers) {
+                counts.put(caregiver, getLoad(caregiver));
+            }
+            caregivers.sort(Comparator.comparing(counts::get));
+            return caregivers;
+        }
+
+        @Override
+        public void booked(String caregiver) {
+            load.computeIfAbsent(caregiver, k -> new AtomicInteger()).incrementAndGet();
+        }
+
+        @Override
+        public void released(String caregiver) {
+            AtomicInteger count = load.get(caregiver);
+            if (count != null) {
+                count.updateAndGet(c -> Math.max(0, c - 1));
+            }
+        }
+
+        private int getLoad(String caregiver) {
+            AtomicInteger count = load.get(caregiver);
+            return count == null ? 0 : count.get();
+        }
+
+        private void ensureLoaded() throws SQLException {
+            if (loaded) {
+                return;
+            }
+            synchronized (this) {
+                if (loaded) {
+                    return;
+                }
+                // added to what booked() counted already, like the availability index
+                try {
+                    Storage.getDefault().export(TableExporter.Table.APPOINTMENTS, Date.valueOf(LocalDate.now()),
+                            null, values -> booked(values[4]));
+                } catch (IOException e) {
+                    throw new SQLException("Could not read appointment counts", e);
+                }
+                loaded = true;
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -1,20 +1,18 @@
 package scheduler.db;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 
 public class ConnectionManager {
 
-    private final String driverName = "com.microsoft.sqlserver.jdbc.SQLServerDriver";
-    private final String connectionUrl = "jdbc:sqlserver://" + System.getenv("Server") +
+    private static final String driverName = "com.microsoft.sqlserver.jdbc.SQLServerDriver";
+    private static final String connectionUrl = "jdbc:sqlserver://" + System.getenv("Server") +
             ".database.windows.net:1433;database=" + System.getenv("DBName");
-    private final String userName = System.getenv("UserID");
-    private final String userPass = System.getenv("Password");
+    private static final String userName = System.getenv("UserID");
+    private static final String userPass = System.getenv("Password");
 
-    private Connection con = null;
-
-    public ConnectionManager() {
+    static {
         try {
             Class.forName(driverName);
         } catch (ClassNotFoundException e) {
@@ -22,20 +20,60 @@ public class ConnectionManager {
         }
     }
 
+    private Connection con = null;
+    // what callers see: con itself, or con wrapped by the tracer when SlowQueryThresholdMs is set
+    private Connection view = null;
+    private QueryTracer tracer = null;
+
+    public ConnectionManager() {
+    }
+
+    // borrows a connection from the shared pool instead of opening a new one every time
     public Connection createConnection() {
         try {
-            con = DriverManager.getConnection(connectionUrl, userName, userPass);
+            con = getPool().borrow();
+            view = con;
+            SlowQueryLog log = SlowQueryLog.isEnabled() ? SlowQueryLog.getInstance() : null;
+            if (log != null) {
+                tracer = new QueryTracer(log);
+                view = tracer.wrap(con);
+            }
         } catch (SQLException e) {
             e.printStackTrace();
         }
-        return con;
+        return view;
+    }
+
+    public Connection getConnection() {
+        return view;
     }
 
+    // hands the connection back to the pool, it is only really closed when the pool retires it
     public void closeConnection() {
-        try {
-            this.con.close();
-        } catch (SQLException e) {
-            e.printStackTrace();
+        if (tracer != null) {
+            tracer.finish();
+            tracer = null;
+        }
+        getPool().giveBack(this.con);
+        this.con = null;
+        this.view = null;
+    }
+
+    // statements from the registry are prepared once per pooled connection and reused after that,
+    // callers must not close them
+    public PreparedStatement prepare(SqlStatement sql) throws SQLException {
+        if (con == null) {
+            throw new SQLException("No database connection available");
         }
+        PreparedStatement statement = getPool().prepare(con, sql);
+        return tracer == null ? statement : tracer.wrap(statement, sql.getSql());
+    }
+
+    public static ConnectionPool.PoolStats getPoolStats() {
+        return getPool().getStats();
+    }
+
+    private static ConnectionPool getPool() {
+        return ConnectionPool.getInstance(connectionUrl, userName, userPass);
     }
 }
\ No newline at end of file
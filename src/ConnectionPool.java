@@ -0,0 +1,456 @@
+package scheduler.db;
+
+import scheduler.util.Metrics;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ConnectionPool {
+
+    // pool settings, all of them can be overridden through environment variables
+    private static final int DEFAULT_MIN_SIZE = 1;
+    private static final int DEFAULT_MAX_SIZE = 10;
+    private static final long DEFAULT_BORROW_TIMEOUT_MS = 30_000;
+    private static final long DEFAULT_IDLE_TIMEOUT_MS = 5 * 60_000;
+    private static final long DEFAULT_LEAK_THRESHOLD_MS = 60_000;
+    private static final long MAINTENANCE_INTERVAL_MS = 10_000;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    private static volatile ConnectionPool instance = null;
+
+    private final String url;
+    private final String userName;
+    private final String userPass;
+    private final int minSize;
+    private final int maxSize;
+    private final long borrowTimeoutMs;
+    private final long idleTimeoutMs;
+    private final long leakThresholdMs;
+    // a stack trace per borrow is expensive, so the borrowing code is only recorded when asked for
+    private final boolean leakTraces;
+
+    // idle connections, most recently returned first so that the tail can be evicted
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+    private final Map<Connection, PooledConnection> borrowed = new ConcurrentHashMap<>();
+    private int totalConnections = 0;
+    private boolean closed = false;
+    private final ScheduledExecutorService maintenance;
+
+    // counters
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong borrowWaitNanos = new AtomicLong();
+    private final AtomicLong maxBorrowWaitNanos = new AtomicLong();
+    private final AtomicLong borrowTimeouts = new AtomicLong();
+    private final AtomicLong createdCount = new AtomicLong();
+    private final AtomicLong destroyedCount = new AtomicLong();
+    private final AtomicLong validationFailures = new AtomicLong();
+    private final AtomicLong leakCount = new AtomicLong();
+    private int peakActive = 0;
+
+    private ConnectionPool(String url, String userName, String userPass) {
+        this.url = url;
+        this.userName = userName;
+        this.userPass = userPass;
+        this.maxSize = Math.max(1, intSetting("PoolMaxSize", DEFAULT_MAX_SIZE));
+        this.minSize = Math.min(this.maxSize, Math.max(0, intSetting("PoolMinSize", DEFAULT_MIN_SIZE)));
+        this.borrowTimeoutMs = longSetting("PoolBorrowTimeoutMs", DEFAULT_BORROW_TIMEOUT_MS);
+        this.idleTimeoutMs = longSetting("PoolIdleTimeoutMs", DEFAULT_IDLE_TIMEOUT_MS);
+        this.leakThresholdMs = longSetting("PoolLeakThresholdMs", DEFAULT_LEAK_THRESHOLD_MS);
+        this.leakTraces = Boolean.parseBoolean(System.getenv("PoolLeakTraces"));
+
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "connection-pool-maintenance");
+            t.setDaemon(true);
+            return t;
+        });
+        this.maintenance.scheduleWithFixedDelay(this::maintain, MAINTENANCE_INTERVAL_MS,
+                MAINTENANCE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // every borrow and give back goes through here, so only the first call takes the lock
+    public static ConnectionPool getInstance(String url, String userName, String userPass) {
+        ConnectionPool pool = instance;
+        if (pool != null) {
+            return pool;
+        }
+        synchronized (ConnectionPool.class) {
+            if (instance == null) {
+                instance = new ConnectionPool(url, userName, userPass);
+            }
+            return instance;
+        }
+    }
+
+    public Connection borrow() throws SQLException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(borrowTimeoutMs);
+        while (true) {
+            PooledConnection pc = null;
+            boolean create = false;
+            synchronized (this) {
+                while (!closed && idle.isEmpty() && totalConnections >= maxSize) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        borrowTimeouts.incrementAndGet();
+                        throw new SQLException("Timed out waiting for a database connection");
+                    }
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted while waiting for a database connection");
+                    }
+                }
+                if (closed) {
+                    throw new SQLException("Connection pool is closed");
+                }
+                if (!idle.isEmpty()) {
+                    pc = idle.pollFirst();
+                } else {
+                    // reserve the slot before leaving the lock, the connection is opened outside of it
+                    totalConnections++;
+                    create = true;
+                }
+            }
+
+            if (create) {
+                try {
+                    pc = open();
+                } catch (SQLException e) {
+                    release(null);
+                    throw e;
+                }
+            } else if (!isValid(pc)) {
+                validationFailures.incrementAndGet();
+                destroy(pc);
+                release(null);
+                continue;
+            }
+
+            pc.borrowedAt = System.currentTimeMillis();
+            pc.borrower = Thread.currentThread().getName();
+            pc.borrowSite = leakTraces ? new Throwable("Connection borrowed here") : null;
+            pc.leakReported = false;
+            borrowed.put(pc.connection, pc);
+            recordBorrow(System.nanoTime() - start);
+            return pc.connection;
+        }
+    }
+
+    public void giveBack(Connection con) {
+        if (con == null) {
+            return;
+        }
+        PooledConnection pc = borrowed.remove(con);
+        if (pc == null) {
+            // not ours (or returned twice), just make sure it does not stay open
+            closeQuietly(con);
+            return;
+        }
+        pc.borrowSite = null;
+        if (!reset(pc)) {
+            destroy(pc);
+            release(null);
+            return;
+        }
+        pc.lastUsed = System.currentTimeMillis();
+        release(pc);
+    }
+
+    // cached statement for a borrowed connection, plain prepareStatement for anything the pool does not know
+    public PreparedStatement prepare(Connection con, SqlStatement sql) throws SQLException {
+        PooledConnection pc = borrowed.get(con);
+        if (pc == null) {
+            return con.prepareStatement(sql.getSql());
+        }
+        return pc.statements.get(sql);
+    }
+
+    public PoolStats getStats() {
+        synchronized (this) {
+            return new PoolStats(totalConnections, idle.size(), borrowed.size(), peakActive, maxSize,
+                    borrowCount.get(), borrowWaitNanos.get(), maxBorrowWaitNanos.get(), borrowTimeouts.get(),
+                    createdCount.get(), destroyedCount.get(), validationFailures.get(), leakCount.get(),
+                    StatementCache.getHits(), StatementCache.getMisses(), StatementCache.getEvictions());
+        }
+    }
+
+    public void close() {
+        List<PooledConnection> retired;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            retired = new ArrayList<>(idle);
+            totalConnections -= idle.size();
+            idle.clear();
+            notifyAll();
+        }
+        // closing talks to the server, so it happens after the lock is let go
+        for (PooledConnection pc : retired) {
+            destroy(pc);
+        }
+        maintenance.shutdownNow();
+    }
+
+    private PooledConnection open() throws SQLException {
+        Connection con = DriverManager.getConnection(url, userName, userPass);
+        createdCount.incrementAndGet();
+        return new PooledConnection(con);
+    }
+
+    // hands a connection back to the idle list (or only frees the slot when pc is null)
+    private void release(PooledConnection pc) {
+        boolean retire = false;
+        synchronized (this) {
+            if (pc == null) {
+                totalConnections--;
+            } else if (closed) {
+                totalConnections--;
+                retire = true;
+            } else {
+                idle.addFirst(pc);
+            }
+            notify();
+        }
+        if (retire) {
+            destroy(pc);
+        }
+    }
+
+    private void recordBorrow(long waitNanos) {
+        borrowCount.incrementAndGet();
+        Metrics.getInstance().connectionAcquired();
+        borrowWaitNanos.addAndGet(waitNanos);
+        maxBorrowWaitNanos.accumulateAndGet(waitNanos, Math::max);
+        synchronized (this) {
+            peakActive = Math.max(peakActive, borrowed.size());
+        }
+    }
+
+    private boolean isValid(PooledConnection pc) {
+        try {
+            return !pc.connection.isClosed() && pc.connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    // undo whatever the previous borrower left behind before the connection is reused
+    private boolean reset(PooledConnection pc) {
+        try {
+            if (pc.connection.isClosed()) {
+                return false;
+            }
+            if (!pc.connection.getAutoCommit()) {
+                pc.connection.rollback();
+                pc.connection.setAutoCommit(true);
+            }
+            if (pc.connection.getTransactionIsolation() != pc.defaultIsolation) {
+                pc.connection.setTransactionIsolation(pc.defaultIsolation);
+            }
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void destroy(PooledConnection pc) {
+        destroyedCount.incrementAndGet();
+        pc.statements.close();
+        closeQuietly(pc.connection);
+    }
+
+    private void closeQuietly(Connection con) {
+        try {
+            con.close();
+        } catch (SQLException e) {
+            // nothing useful to do, the connection is gone either way
+        }
+    }
+
+    // evicts idle connections above the minimum size, tops the pool up to the minimum and reports leaks
+    private void maintain() {
+        long now = System.currentTimeMillis();
+        List<PooledConnection> retired = new ArrayList<>();
+        synchronized (this) {
+            Iterator<PooledConnection> it = idle.descendingIterator();
+            while (it.hasNext() && totalConnections > minSize) {
+                PooledConnection pc = it.next();
+                if (now - pc.lastUsed < idleTimeoutMs) {
+                    break;
+                }
+                it.remove();
+                totalConnections--;
+                retired.add(pc);
+            }
+        }
+        for (PooledConnection pc : retired) {
+            destroy(pc);
+        }
+
+        while (true) {
+            synchronized (this) {
+                if (closed || totalConnections >= minSize) {
+                    break;
+                }
+                totalConnections++;
+            }
+            try {
+                PooledConnection pc = open();
+                pc.lastUsed = System.currentTimeMillis();
+                release(pc);
+            } catch (SQLException e) {
+                release(null);
+                break;
+            }
+        }
+
+        for (PooledConnection pc : borrowed.values()) {
+            if (!pc.leakReported && now - pc.borrowedAt > leakThresholdMs) {
+                pc.leakReported = true;
+                leakCount.incrementAndGet();
+                System.out.println("Possible connection leak: connection held for " +
+                        (now - pc.borrowedAt) + " ms by thread " + pc.borrower +
+                        (leakTraces ? "" : ", set PoolLeakTraces=true to see where it was borrowed"));
+                Throwable site = pc.borrowSite;
+                if (site != null) {
+                    site.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static int intSetting(String name, int defaultValue) {
+        return (int) longSetting(name, defaultValue);
+    }
+
+    private static long longSetting(String name, long defaultValue) {
+        String value = System.getenv(name);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring invalid value for " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    private static class PooledConnection {
+        private final Connection connection;
+        private final int defaultIsolation;
+        private final StatementCache statements;
+        private volatile long borrowedAt;
+        private volatile String borrower;
+        private volatile Throwable borrowSite;
+        // once per borrow, cleared when the connection is borrowed again
+        private volatile boolean leakReported;
+        private long lastUsed;
+
+        private PooledConnection(Connection connection) throws SQLException {
+            this.connection = connection;
+            this.defaultIsolation = connection.getTransactionIsolation();
+            this.statements = new StatementCache(connection);
+        }
+    }
+
+    public static class PoolStats {
+        private final int total;
+        private final int idle;
+        private final int active;
+        private final int peakActive;
+        private final int maxSize;
+        private final long borrows;
+        private final long borrowWaitNanos;
+        private final long maxBorrowWaitNanos;
+        private final long borrowTimeouts;
+        private final long created;
+        private final long destroyed;
+        private final long validationFailures;
+        private final long leaks;
+        private final long statementHits;
+        private final long statementMisses;
+        private final long statementEvictions;
+
+        private PoolStats(int total, int idle, int active, int peakActive, int maxSize, long borrows,
+                          long borrowWaitNanos, long maxBorrowWaitNanos, long borrowTimeouts, long created,
+                          long destroyed, long validationFailures, long leaks, long statementHits,
+                          long statementMisses, long statementEvictions) {
+            this.total = total;
+            this.idle = idle;
+            this.active = active;
+            this.peakActive = peakActive;
+            this.maxSize = maxSize;
+            this.borrows = borrows;
+            this.borrowWaitNanos = borrowWaitNanos;
+            this.maxBorrowWaitNanos = maxBorrowWaitNanos;
+            this.borrowTimeouts = borrowTimeouts;
+            this.created = created;
+            this.destroyed = destroyed;
+            this.validationFailures = validationFailures;
+            this.leaks = leaks;
+            this.statementHits = statementHits;
+            this.statementMisses = statementMisses;
+            this.statementEvictions = statementEvictions;
+        }
+
+        public int getTotal() { return total; }
+        public int getIdle() { return idle; }
+        public int getActive() { return active; }
+        public int getPeakActive() { return peakActive; }
+        public int getMaxSize() { return maxSize; }
+        public long getBorrows() { return borrows; }
+        public long getBorrowWaitNanos() { return borrowWaitNanos; }
+        public long getMaxBorrowWaitNanos() { return maxBorrowWaitNanos; }
+        public long getBorrowTimeouts() { return borrowTimeouts; }
+        public long getCreated() { return created; }
+        public long getDestroyed() { return destroyed; }
+        public long getValidationFailures() { return validationFailures; }
+        public long getLeaks() { return leaks; }
+        public long getStatementHits() { return statementHits; }
+        public long getStatementMisses() { return statementMisses; }
+        public long getStatementEvictions() { return statementEvictions; }
+
+        public double getAverageBorrowWaitMillis() {
+            return borrows == 0 ? 0.0 : borrowWaitNanos / (double) borrows / 1_000_000.0;
+        }
+
+        @Override
+        public String toString() {
+            return "PoolStats{" +
+                    "total=" + total +
+                    ", idle=" + idle +
+                    ", active=" + active +
+                    ", peakActive=" + peakActive +
+                    ", maxSize=" + maxSize +
+                    ", borrows=" + borrows +
+                    ", avgBorrowWaitMs=" + String.format("%.3f", getAverageBorrowWaitMillis()) +
+                    ", maxBorrowWaitMs=" + String.format("%.3f", maxBorrowWaitNanos / 1_000_000.0) +
+                    ", borrowTimeouts=" + borrowTimeouts +
+                    ", created=" + created +
+                    ", destroyed=" + destroyed +
+                    ", validationFailures=" + validationFailures +
+                    ", leaks=" + leaks +
+                    ", statementHits=" + statementHits +
+                    ", statementMisses=" + statementMisses +
+                    ", statementEvictions=" + statementEvictions +
+                    '}';
+        }
+    }
+}
\ No newline at end of file
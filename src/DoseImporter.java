@@ -0,0 +1,89 @@
+package scheduler.db;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Streams a shipment manifest of "vaccine,doses" lines into the Vaccines table. Only one chunk of distinct
+// vaccine names is held in memory at a time, so the file can be any size.
+public class DoseImporter {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int CHUNK_SIZE = 1_000;
+
+    public static class ImportResult {
+        private long lines;
+        private long rejected;
+        private long doses;
+        private long upserts;
+        private long chunks;
+
+        public long getLines() { return lines; }
+        public long getRejected() { return rejected; }
+        public long getDoses() { return doses; }
+        public long getUpserts() { return upserts; }
+        public long getChunks() { return chunks; }
+    }
+
+    public ImportResult importFile(Path file) throws IOException, SQLException {
+        ImportResult result = new ImportResult();
+        Map<String, Integer> chunk = new LinkedHashMap<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8), READ_BUFFER_SIZE)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                result.lines++;
+                int comma = line.lastIndexOf(',');
+                String name = comma < 0 ? "" : line.substring(0, comma).trim();
+                int doses;
+                try {
+                    doses = Integer.parseInt(line.substring(comma + 1).trim());
+                } catch (NumberFormatException e) {
+                    // a header line or a typo, either way nothing to import
+                    result.rejected++;
+                    continue;
+                }
+                if (name.isEmpty() || doses <= 0) {
+                    result.rejected++;
+                    continue;
+                }
+                // duplicate names in the same chunk are merged before they reach the database
+                chunk.merge(name, doses, Math::addExact);
+                result.doses += doses;
+                if (chunk.size() >= CHUNK_SIZE) {
+                    applyChunk(chunk, result);
+                    chunk.clear();
+                }
+            }
+        }
+        if (!chunk.isEmpty()) {
+            applyChunk(chunk, result);
+        }
+        return result;
+    }
+
+    // one transaction per chunk, one batched MERGE per distinct vaccine
+    private void applyChunk(Map<String, Integer> chunk, ImportResult result) throws SQLException {
+        Storage.getDefault().mergeDoses(chunk);
+        result.upserts += chunk.size();
+        result.chunks++;
+
+        VaccineInventory inventory = VaccineInventory.getInstance();
+        for (Map.Entry<String, Integer> entry : chunk.entrySet()) {
+            if (inventory.getDoses(entry.getKey()) != null) {
+                inventory.applyPersisted(entry.getKey(), entry.getValue());
+            } else {
+                inventory.register(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,878 @@
+package scheduler.db;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+// The scheduler's tables held in this process, for clinics that cannot count on reaching the database server.
+// Every transaction is one journal entry that is appended before the tables change, and startup replays the
+// journal. The journal is forced to disk every JournalSyncIntervalMs (0 forces on every commit) and rewritten
+// as a snapshot of the live rows once it has grown past JournalCompactBytes and twice its last compacted size.
+public class EmbeddedStorage implements Storage {
+
+    private static final String DEFAULT_DIRECTORY = "data";
+    private static final long DEFAULT_SYNC_INTERVAL_MS = 50;
+    private static final long DEFAULT_COMPACT_BYTES = 64L << 20;
+    private static final long COMPACT_CHECK_INTERVAL_MS = 30_000;
+    private static final int SNAPSHOT_ENTRY_BYTES = 1 << 20;
+    private static final int EXPORT_CHUNK_ROWS = 1_024;
+
+    // journal operations, never renumber these
+    private static final byte PUT_ACCOUNT = 1;
+    private static final byte ADD_AVAILABILITY = 2;
+    private static final byte REMOVE_AVAILABILITY = 3;
+    private static final byte PUT_VACCINE = 4;
+    private static final byte ADD_APPOINTMENT = 5;
+    private static final byte PUT_SEQUENCE = 6;
+    private static final byte REMOVE_APPOINTMENT = 7;
+
+    private static final EmbeddedStorage instance = new EmbeddedStorage();
+
+    private static class AccountRow {
+        private final String username;
+        private final byte[] salt;
+        private final byte[] hash;
+        private final int iterations;
+
+        private AccountRow(String username, byte[] salt, byte[] hash, int iterations) {
+            this.username = username;
+            this.salt = salt;
+            this.hash = hash;
+            this.iterations = iterations;
+        }
+    }
+
+    private static class VaccineRow {
+        private final String name;
+        private int doses;
+        // bumped by every PUT_VACCINE, the journal does not need to store it
+        private int version;
+
+        private VaccineRow(String name, int doses) {
+            this.name = name;
+            this.doses = doses;
+        }
+    }
+
+    // Names are keyed in lower case because the database compares them case-insensitively; the rows keep the
+    // spelling they were written with. Everything is guarded by lock.
+    private final Map<String, AccountRow> caregivers = new HashMap<>();
+    private final Map<String, AccountRow> patients = new HashMap<>();
+    private final NavigableMap<LocalDate, NavigableMap<String, String>> availabilities = new TreeMap<>();
+    private final Map<String, VaccineRow> vaccines = new HashMap<>();
+    private final NavigableMap<String, Appointment> appointments = new TreeMap<>();
+    // the (Patient, AppointmentID) and (Caregiver, AppointmentID) indexes
+    private final Map<String, NavigableSet<String>> appointmentsByPatient = new HashMap<>();
+    private final Map<String, NavigableSet<String>> appointmentsByCaregiver = new HashMap<>();
+    private final Map<String, Long> sequences = new HashMap<>();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // the entry of the transaction in progress, only touched with the write lock held
+    private final Journal.Entry entry = new Journal.Entry();
+    private final Path directory;
+    private final long syncIntervalMs;
+    private final long compactBytes;
+    private Journal journal;
+    private ScheduledExecutorService maintenance;
+    private long compactedSize = 0;
+
+    private EmbeddedStorage() {
+        String setting = System.getenv("EmbeddedDataDir");
+        this.directory = Paths.get(setting == null || setting.isEmpty() ? DEFAULT_DIRECTORY : setting);
+        this.syncIntervalMs = readSetting("JournalSyncIntervalMs", DEFAULT_SYNC_INTERVAL_MS);
+        this.compactBytes = readSetting("JournalCompactBytes", DEFAULT_COMPACT_BYTES);
+    }
+
+    public static EmbeddedStorage getInstance() {
+        return instance;
+    }
+
+    private static long readSetting(String name, long defaultValue) {
+        String setting = System.getenv(name);
+        if (setting != null && !setting.isEmpty()) {
+            try {
+                return Math.max(0, Long.parseLong(setting.trim()));
+            } catch (NumberFormatException e) {
+                System.out.println("Ignoring invalid value for " + name + ": " + setting);
+            }
+        }
+        return defaultValue;
+    }
+
+    @Override
+    public void open() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (journal != null) {
+                return;
+            }
+            Files.createDirectories(directory);
+            Journal opened = new Journal(directory.resolve("journal.log"));
+            long start = System.nanoTime();
+            opened.open(this::apply);
+            journal = opened;
+            compactedSize = journal.size();
+            System.out.println("Replayed " + journal.size() + " journal bytes in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "embedded-storage");
+            t.setDaemon(true);
+            return t;
+        });
+        if (syncIntervalMs > 0) {
+            maintenance.scheduleWithFixedDelay(this::syncQuietly, syncIntervalMs, syncIntervalMs,
+                    TimeUnit.MILLISECONDS);
+        }
+        maintenance.scheduleWithFixedDelay(this::compactQuietly, COMPACT_CHECK_INTERVAL_MS,
+                COMPACT_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            if (journal == null) {
+                return;
+            }
+            maintenance.shutdown();
+            journal.close();
+            journal = null;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void addAccount(Account account, String username, byte[] salt, byte[] hash, int iterations)
+            throws SQLException {
+        beginWrite();
+        try {
+            if (accounts(account).containsKey(key(username))) {
+                throw duplicateKey(account + " " + username);
+            }
+            putAccount(account, username, salt, hash, iterations);
+            commit();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Credentials getCredentials(Account account, String username) {
+        lock.readLock().lock();
+        try {
+            AccountRow row = accounts(account).get(key(username));
+            return row == null ? null : new Credentials(row.salt, row.hash, row.iterations);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void updateCredentials(Account account, String username, byte[] salt, byte[] hash, int iterations)
+            throws SQLException {
+        beginWrite();
+        try {
+            AccountRow row = accounts(account).get(key(username));
+            if (row == null) {
+                return;
+            }
+            putAccount(account, row.username, salt, hash, iterations);
+            commit();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean accountExists(Account account, String username) {
+        lock.readLock().lock();
+        try {
+            return accounts(account).containsKey(key(username));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void forEachUsername(Account account, Consumer<String> action) {
+        lock.readLock().lock();
+        try {
+            for (AccountRow row : accounts(account).values()) {
+                action.accept(row.username);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void addAvailability(Date date, String caregiver) throws SQLException {
+        beginWrite();
+        try {
+            String name = caregiverName(caregiver);
+            if (isAvailable(date.toLocalDate(), name)) {
+                throw duplicateKey("availability " + date + " " + caregiver);
+            }
+            entry.putByte(ADD_AVAILABILITY).putInt((int) date.toLocalDate().toEpochDay()).putString(name);
+            commit();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Date> addAvailabilities(String caregiver, Collection<Date> dates) throws SQLException {
+        List<Date> inserted = new ArrayList<>();
+        beginWrite();
+        try {
+            String name = caregiverName(caregiver);
+            TreeSet<LocalDate> added = new TreeSet<>();
+            for (Date d : dates) {
+                LocalDate day = d.toLocalDate();
+                if (!isAvailable(day, name) && added.add(day)) {
+                    entry.putByte(ADD_AVAILABILITY).putInt((int) day.toEpochDay()).putString(name);
+                    inserted.add(d);
+                }
+            }
+            commit();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return inserted;
+    }
+
+    @Override
+    public void forEachAvailability(BiConsumer<LocalDate, String> action) {
+        lock.readLock().lock();
+        try {
+            for (Map.Entry<LocalDate, NavigableMap<String, String>> day : availabilities.entrySet()) {
+                for (String caregiver : day.getValue().values()) {
+                    action.accept(day.getKey(), caregiver);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void addVaccine(String name, int doses) throws SQLException {
+        beginWrite();
+        try {
+            if (vaccines.containsKey(key(name))) {
+                throw duplicateKey("vaccine " + name);
+            }
+            entry.putByte(PUT_VACCINE).putString(name).putInt(doses);
+            commit();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Integer getDoses(String name) {
+        lock.readLock().lock();
+        try {
+            VaccineRow row = vaccines.get(key(name));
+            return row == null ? null : row.doses;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void forEachVaccine(BiConsumer<String, Integer> action) {
+        lock.readLock().lock();
+        try {
+            for (VaccineRow row : vaccines.values()) {
+                action.accept(row.name, row.doses);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, Stock> getStocks(Collection<String> names) {
+        lock.readLock().lock();
+        try {
+            Map<String, Stock> stocks = new HashMap<>();
+            for (String name : names) {
+                VaccineRow row = vaccines.get(key(name));
+                if (row != null) {
+                    stocks.put(name, new Stock(row.doses, row.version));
+                }
+            }
+            return stocks;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // the same check as the UPDATE; writers here are serialized by the lock, so only a write that happened
+    // between getStocks and this call makes a vaccine come back changed
+    @Override
+    public Set<String> compareAndSetDoses(Map<String, Stock> read, Map<String, Integer> doses)
+            throws SQLException {
+        beginWrite();
+        try {
+            Set<String> changed = new HashSet<>();
+            for (Map.Entry<String, Integer> update : doses.entrySet()) {
+                VaccineRow row = vaccines.get(key(update.getKey()));
+                if (row == null || row.version != read.get(update.getKey()).getVersion()) {
+                    changed.add(update.getKey());
+                } else {
+                    entry.putByte(PUT_VACCINE).putString(row.name).putInt(update.getValue());
+                }
+            }
+            commit();
+            return changed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void mergeDoses(Map<String, Integer> doses) throws SQLException {
+        beginWrite();
+        try {
+            for (Map.Entry<String, Integer> delta : doses.entrySet()) {
+                VaccineRow row = vaccines.get(key(delta.getKey()));
+                if (row == null) {
+                    entry.putByte(PUT_VACCINE).putString(delta.getKey()).putInt(delta.getValue());
+                } else {
+                    entry.putByte(PUT_VACCINE).putString(row.name).putInt(Math.addExact(row.doses, delta.getValue()));
+                }
+            }
+            commit();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public ReservationEngine.Reservation reserve(String appointmentId, Date date, String vaccine, String patient,
+            Iterable<String> candidates, Consumer<String> stale) throws SQLException {
+        beginWrite();
+        try {
+            LocalDate day = date.toLocalDate();
+            String caregiver = null;
+            for (String candidate : candidates) {
+                if (isAvailable(day, candidate)) {
+                    caregiver = availabilities.get(day).get(key(candidate));
+                    break;
+                }
+                stale.accept(candidate);
+            }
+            if (caregiver == null) {
+                return new ReservationEngine.Reservation(ReservationEngine.Status.NO_CAREGIVER, null, null);
+            }
+            VaccineRow row = vaccines.get(key(vaccine));
+            if (row == null || row.doses <= 0) {
+                return new ReservationEngine.Reservation(row == null
+                        ? ReservationEngine.Status.NO_VACCINE : ReservationEngine.Status.NO_DOSES, null, null);
+            }
+            if (appointments.containsKey(appointmentId)) {
+                throw duplicateKey("appointment " + appointmentId);
+            }
+            entry.putByte(REMOVE_AVAILABILITY).putInt((int) day.toEpochDay()).putString(caregiver);
+            entry.putByte(PUT_VACCINE).putString(row.name).putInt(row.doses - 1);
+            entry.putByte(ADD_APPOINTMENT).putString(appointmentId).putInt((int) day.toEpochDay())
+                    .putString(vaccine).putString(patient).putString(caregiver);
+            commit();
+            return new ReservationEngine.Reservation(ReservationEngine.Status.RESERVED, appointmentId, caregiver);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Appointment> reserveAll(List<Appointment> requests, Iterable<String> candidates,
+            Consumer<String> stale) throws SQLException {
+        beginWrite();
+        try {
+            List<Appointment> booked = new ArrayList<>();
+            Iterator<String> free = candidates.iterator();
+            // nothing is applied before commit, so doses taken so far are tracked here
+            Map<String, Integer> taken = new HashMap<>();
+            for (Appointment request : requests) {
+                LocalDate day = request.getTime().toLocalDate();
+                VaccineRow row = vaccines.get(key(request.getVaccine()));
+                if (row == null || row.doses - taken.getOrDefault(key(row.name), 0) <= 0) {
+                    continue;
+                }
+                String caregiver = null;
+                while (caregiver == null && free.hasNext()) {
+                    String candidate = free.next();
+                    if (isAvailable(day, candidate)) {
+                        caregiver = availabilities.get(day).get(key(candidate));
+                    } else {
+                        stale.accept(candidate);
+                    }
+                }
+                if (caregiver == null) {
+                    break;
+                }
+                if (appointments.containsKey(request.getAppointmentId())) {
+                    throw duplicateKey("appointment " + request.getAppointmentId());
+                }
+                int left = row.doses - taken.merge(key(row.name), 1, Integer::sum);
+                entry.putByte(REMOVE_AVAILABILITY).putInt((int) day.toEpochDay()).putString(caregiver);
+                entry.putByte(PUT_VACCINE).putString(row.name).putInt(left);
+                entry.putByte(ADD_APPOINTMENT).putString(request.getAppointmentId()).putInt((int) day.toEpochDay())
+                        .putString(request.getVaccine()).putString(request.getPatient()).putString(caregiver);
+                booked.add(new Appointment(request.getAppointmentId(), request.getTime(), request.getVaccine(),
+                        request.getPatient(), caregiver));
+            }
+            commit();
+            return booked;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Appointment> cancelAppointment(String appointmentId, Account owner, String username)
+            throws SQLException {
+        beginWrite();
+        try {
+            List<Appointment> matches = new ArrayList<>();
+            Appointment appointment = appointments.get(appointmentId);
+            if (appointment != null && key(owner == Account.CAREGIVER
+                    ? appointment.getCaregiver() : appointment.getPatient()).equals(key(username))) {
+                matches.add(appointment);
+            }
+            return cancel(matches);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Appointment> cancelCaregiverDay(String caregiver, Date date) throws SQLException {
+        beginWrite();
+        try {
+            List<Appointment> matches = new ArrayList<>();
+            for (String id : appointmentsByCaregiver.getOrDefault(key(caregiver), new TreeSet<>())) {
+                Appointment appointment = appointments.get(id);
+                if (appointment.getTime().equals(date)) {
+                    matches.add(appointment);
+                }
+            }
+            return cancel(matches);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // there is no (Vaccine, Time) index here, a recall is rare enough to scan for
+    @Override
+    public List<Appointment> cancelVaccineDay(String vaccine, Date date) throws SQLException {
+        beginWrite();
+        try {
+            List<Appointment> matches = new ArrayList<>();
+            for (Appointment appointment : appointments.values()) {
+                if (appointment.getTime().equals(date) && key(appointment.getVaccine()).equals(key(vaccine))) {
+                    matches.add(appointment);
+                }
+            }
+            return cancel(matches);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // one journal entry for all of them: the appointments go, the caregivers get their days back and the doses
+    // are returned, the same as the set-based statements on the server
+    private List<Appointment> cancel(List<Appointment> matches) throws SQLException {
+        Map<String, Integer> returned = new HashMap<>();
+        for (Appointment appointment : matches) {
+            LocalDate day = appointment.getTime().toLocalDate();
+            entry.putByte(REMOVE_APPOINTMENT).putString(appointment.getAppointmentId());
+            if (!isAvailable(day, appointment.getCaregiver())) {
+                entry.putByte(ADD_AVAILABILITY).putInt((int) day.toEpochDay()).putString(appointment.getCaregiver());
+            }
+            returned.merge(key(appointment.getVaccine()), 1, Integer::sum);
+        }
+        for (Map.Entry<String, Integer> doses : returned.entrySet()) {
+            VaccineRow row = vaccines.get(doses.getKey());
+            if (row != null) {
+                entry.putByte(PUT_VACCINE).putString(row.name).putInt(Math.addExact(row.doses, doses.getValue()));
+            }
+        }
+        commit();
+        return matches;
+    }
+
+    @Override
+    public List<Appointment> getAppointments(Account owner, String username, String after, int limit) {
+        lock.readLock().lock();
+        try {
+            List<Appointment> page = new ArrayList<>();
+            NavigableSet<String> ids = (owner == Account.CAREGIVER ? appointmentsByCaregiver : appointmentsByPatient)
+                    .get(key(username));
+            if (ids == null) {
+                return page;
+            }
+            for (String id : ids.tailSet(after, false)) {
+                if (page.size() == limit) {
+                    break;
+                }
+                page.add(appointments.get(id));
+            }
+            return page;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long reserveIdBlock(String sequence, long size) throws SQLException {
+        beginWrite();
+        try {
+            long start = sequences.getOrDefault(sequence, 0L);
+            entry.putByte(PUT_SEQUENCE).putString(sequence).putLong(start + size);
+            commit();
+            return start;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void export(TableExporter.Table table, Date from, Date to, RowVisitor visitor) throws IOException {
+        LocalDate first = from == null ? LocalDate.MIN : from.toLocalDate();
+        LocalDate last = to == null ? LocalDate.MAX : to.toLocalDate();
+        if (table == TableExporter.Table.APPOINTMENTS) {
+            exportAppointments(first, last, visitor);
+        } else {
+            exportAvailabilities(first, last, visitor);
+        }
+    }
+
+    // Rows are copied out EXPORT_CHUNK_ROWS at a time under the read lock and written with the lock let go, so
+    // memory does not grow with the table and writing the file does not hold up other commands. Each chunk picks
+    // up after the last key of the one before, like a keyset page.
+    private void exportAppointments(LocalDate first, LocalDate last, RowVisitor visitor) throws IOException {
+        List<String[]> chunk = new ArrayList<>(EXPORT_CHUNK_ROWS);
+        String after = null;
+        boolean more = true;
+        while (more) {
+            chunk.clear();
+            more = false;
+            lock.readLock().lock();
+            try {
+                int scanned = 0;
+                for (Appointment a : (after == null ? appointments : appointments.tailMap(after, false)).values()) {
+                    if (scanned++ == EXPORT_CHUNK_ROWS) {
+                        more = true;
+                        break;
+                    }
+                    after = a.getAppointmentId();
+                    LocalDate day = a.getTime().toLocalDate();
+                    if (!day.isBefore(first) && !day.isAfter(last)) {
+                        chunk.add(new String[] {a.getAppointmentId(), a.getTime().toString(), a.getVaccine(),
+                                a.getPatient(), a.getCaregiver()});
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            for (String[] row : chunk) {
+                visitor.visit(row);
+            }
+        }
+    }
+
+    private void exportAvailabilities(LocalDate first, LocalDate last, RowVisitor visitor) throws IOException {
+        List<String[]> chunk = new ArrayList<>(EXPORT_CHUNK_ROWS);
+        LocalDate afterDay = first;
+        String afterCaregiver = null;
+        boolean more = true;
+        while (more) {
+            chunk.clear();
+            more = false;
+            lock.readLock().lock();
+            try {
+                for (Map.Entry<LocalDate, NavigableMap<String, String>> day
+                        : availabilities.subMap(afterDay, true, last, true).entrySet()) {
+                    NavigableMap<String, String> caregivers = day.getKey().equals(afterDay) && afterCaregiver != null
+                            ? day.getValue().tailMap(afterCaregiver, false) : day.getValue();
+                    for (Map.Entry<String, String> caregiver : caregivers.entrySet()) {
+                        if (chunk.size() == EXPORT_CHUNK_ROWS) {
+                            more = true;
+                            break;
+                        }
+                        afterDay = day.getKey();
+                        afterCaregiver = caregiver.getKey();
+                        chunk.add(new String[] {day.getKey().toString(), caregiver.getValue()});
+                    }
+                    if (more) {
+                        break;
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            for (String[] row : chunk) {
+                visitor.visit(row);
+            }
+        }
+    }
+
+    // Writes the snapshot of the live rows as the new journal. Commands wait while it runs.
+    public void compact() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (journal == null) {
+                return;
+            }
+            List<byte[]> snapshot = new ArrayList<>();
+            Journal.Entry chunk = new Journal.Entry();
+            for (Account account : Account.values()) {
+                for (AccountRow row : accounts(account).values()) {
+                    chunk.putByte(PUT_ACCOUNT).putByte(account.ordinal()).putString(row.username)
+                            .putBytes(row.salt).putBytes(row.hash).putInt(row.iterations);
+                    cut(chunk, snapshot);
+                }
+            }
+            for (VaccineRow row : vaccines.values()) {
+                chunk.putByte(PUT_VACCINE).putString(row.name).putInt(row.doses);
+                cut(chunk, snapshot);
+            }
+            for (Map.Entry<LocalDate, NavigableMap<String, String>> day : availabilities.entrySet()) {
+                for (String caregiver : day.getValue().values()) {
+                    chunk.putByte(ADD_AVAILABILITY).putInt((int) day.getKey().toEpochDay()).putString(caregiver);
+                    cut(chunk, snapshot);
+                }
+            }
+            for (Appointment a : appointments.values()) {
+                chunk.putByte(ADD_APPOINTMENT).putString(a.getAppointmentId())
+                        .putInt((int) a.getTime().toLocalDate().toEpochDay()).putString(a.getVaccine())
+                        .putString(a.getPatient()).putString(a.getCaregiver());
+                cut(chunk, snapshot);
+            }
+            for (Map.Entry<String, Long> sequence : sequences.entrySet()) {
+                chunk.putByte(PUT_SEQUENCE).putString(sequence.getKey()).putLong(sequence.getValue());
+            }
+            if (!chunk.isEmpty()) {
+                snapshot.add(chunk.toByteArray());
+            }
+            long before = journal.size();
+            journal.rewrite(snapshot);
+            compactedSize = journal.size();
+            System.out.println("Compacted the journal from " + before + " to " + compactedSize + " bytes");
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static void cut(Journal.Entry chunk, List<byte[]> snapshot) {
+        if (chunk.size() >= SNAPSHOT_ENTRY_BYTES) {
+            snapshot.add(chunk.toByteArray());
+            chunk.clear();
+        }
+    }
+
+    // a transaction that failed half way may have left operations behind
+    private void beginWrite() {
+        lock.writeLock().lock();
+        entry.clear();
+    }
+
+    private void putAccount(Account account, String username, byte[] salt, byte[] hash, int iterations) {
+        entry.putByte(PUT_ACCOUNT).putByte(account.ordinal()).putString(username).putBytes(salt).putBytes(hash)
+                .putInt(iterations);
+    }
+
+    // appends the transaction built up in entry to the journal, then applies it to the tables
+    private void commit() throws SQLException {
+        if (entry.isEmpty()) {
+            return;
+        }
+        byte[] payload = entry.toByteArray();
+        entry.clear();
+        if (journal == null) {
+            throw new SQLException("Embedded storage is not open");
+        }
+        try {
+            journal.append(payload);
+            if (syncIntervalMs == 0) {
+                journal.sync();
+            }
+        } catch (IOException e) {
+            throw new SQLException("Could not write the journal", e);
+        }
+        apply(ByteBuffer.wrap(payload));
+    }
+
+    // replays one transaction, the same code runs for live commits and at startup
+    private void apply(ByteBuffer payload) {
+        while (payload.hasRemaining()) {
+            byte op = payload.get();
+            switch (op) {
+                case PUT_ACCOUNT: {
+                    Account account = Account.values()[payload.get()];
+                    String username = Journal.getString(payload);
+                    AccountRow row = new AccountRow(username, Journal.getBytes(payload), Journal.getBytes(payload),
+                            payload.getInt());
+                    accounts(account).put(key(username), row);
+                    break;
+                }
+                case ADD_AVAILABILITY: {
+                    LocalDate day = LocalDate.ofEpochDay(payload.getInt());
+                    String caregiver = Journal.getString(payload);
+                    availabilities.computeIfAbsent(day, k -> new TreeMap<>()).put(key(caregiver), caregiver);
+                    break;
+                }
+                case REMOVE_AVAILABILITY: {
+                    LocalDate day = LocalDate.ofEpochDay(payload.getInt());
+                    String caregiver = Journal.getString(payload);
+                    NavigableMap<String, String> caregivers = availabilities.get(day);
+                    if (caregivers != null) {
+                        caregivers.remove(key(caregiver));
+                        if (caregivers.isEmpty()) {
+                            availabilities.remove(day);
+                        }
+                    }
+                    break;
+                }
+                case PUT_VACCINE: {
+                    String name = Journal.getString(payload);
+                    int doses = payload.getInt();
+                    VaccineRow row = vaccines.get(key(name));
+                    if (row == null) {
+                        vaccines.put(key(name), new VaccineRow(name, doses));
+                    } else {
+                        row.doses = doses;
+                        row.version++;
+                    }
+                    break;
+                }
+                case ADD_APPOINTMENT: {
+                    String id = Journal.getString(payload);
+                    Date time = Date.valueOf(LocalDate.ofEpochDay(payload.getInt()));
+                    Appointment appointment = new Appointment(id, time, Journal.getString(payload),
+                            Journal.getString(payload), Journal.getString(payload));
+                    appointments.put(id, appointment);
+                    appointmentsByPatient.computeIfAbsent(key(appointment.getPatient()), k -> new TreeSet<>()).add(id);
+                    appointmentsByCaregiver.computeIfAbsent(key(appointment.getCaregiver()), k -> new TreeSet<>())
+                            .add(id);
+                    break;
+                }
+                case PUT_SEQUENCE: {
+                    String sequence = Journal.getString(payload);
+                    sequences.put(sequence, payload.getLong());
+                    break;
+                }
+                case REMOVE_APPOINTMENT: {
+                    Appointment appointment = appointments.remove(Journal.getString(payload));
+                    if (appointment != null) {
+                        unindex(appointmentsByPatient, appointment.getPatient(), appointment.getAppointmentId());
+                        unindex(appointmentsByCaregiver, appointment.getCaregiver(), appointment.getAppointmentId());
+                    }
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown journal operation " + op);
+            }
+        }
+    }
+
+    private static void unindex(Map<String, NavigableSet<String>> index, String owner, String id) {
+        NavigableSet<String> ids = index.get(key(owner));
+        if (ids != null) {
+            ids.remove(id);
+            if (ids.isEmpty()) {
+                index.remove(key(owner));
+            }
+        }
+    }
+
+    private Map<String, AccountRow> accounts(Account account) {
+        return account == Account.CAREGIVER ? caregivers : patients;
+    }
+
+    private boolean isAvailable(LocalDate day, String caregiver) {
+        NavigableMap<String, String> caregivers = availabilities.get(day);
+        return caregivers != null && caregivers.containsKey(key(caregiver));
+    }
+
+    // the spelling of the caregiver's own row, like the foreign key on Availabilities it must exist
+    private String caregiverName(String caregiver) throws SQLException {
+        AccountRow row = caregivers.get(key(caregiver));
+        if (row == null) {
+            throw new SQLException("No caregiver " + caregiver, "23000");
+        }
+        return row.username;
+    }
+
+    private static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    private static SQLException duplicateKey(String row) {
+        return new SQLException("Duplicate key: " + row, "23505");
+    }
+
+    private void syncQuietly() {
+        lock.readLock().lock();
+        try {
+            if (journal != null) {
+                journal.sync();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void compactQuietly() {
+        try {
+            long size;
+            lock.readLock().lock();
+            try {
+                size = journal == null ? 0 : journal.size();
+            } finally {
+                lock.readLock().unlock();
+            }
+            if (size > compactBytes && size > 2 * compactedSize) {
+                compact();
+            }
+        } catch (IOException e) {
+            System.out.println("Error occurred when compacting the journal");
+            e.printStackTrace();
+        }
+    }
+}
\ No newline at end of file
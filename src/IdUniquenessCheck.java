@@ -0,0 +1,119 @@
+package scheduler.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Stress check for BlockSequenceIdGenerator: several generators, each on its own thread like separate processes
+// sharing one database, draw IDs at the same time from one sequence. The blocks are small (16 by default, where
+// AppointmentIdBlockSize would be 1000) so that new ones are reserved all the time. Every ID must be unique across
+// all generators, and each generator's IDs must increase strictly both as numbers and as strings. It runs on a
+// sequence of its own, so the appointment IDs the scheduler hands out are not used up.
+//
+// java scheduler.db.IdUniquenessCheck [--generators 8] [--ids 4000000] [--block-size 16]
+public class IdUniquenessCheck {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 == args.length) {
+                System.out.println("Usage: IdUniquenessCheck [--<option> <value>]...");
+                System.exit(1);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        int generators;
+        int ids;
+        long blockSize;
+        try {
+            generators = Integer.parseInt(options.getOrDefault("generators", "8"));
+            ids = Integer.parseInt(options.getOrDefault("ids", "4000000"));
+            blockSize = Long.parseLong(options.getOrDefault("block-size", "16"));
+        } catch (NumberFormatException e) {
+            System.out.println("Please enter valid numbers!");
+            System.exit(1);
+            return;
+        }
+        if (generators <= 0 || ids < generators || blockSize <= 0) {
+            System.out.println("Please ask for at least one ID per generator and a positive block size!");
+            System.exit(1);
+        }
+
+        Storage storage = Storage.getDefault();
+        // every block is a committed write, against a database this would fill AppointmentIdBlocks with a test row
+        if (!(storage instanceof EmbeddedStorage)) {
+            System.out.println("The ID check only runs against the embedded storage, set StorageBackend=embedded");
+            System.exit(1);
+        }
+        storage.open();
+        long failures;
+        try {
+            failures = run(generators, ids / generators, blockSize);
+        } finally {
+            storage.close();
+        }
+        if (failures > 0) {
+            System.exit(2);
+        }
+    }
+
+    private static long run(int generators, int perGenerator, long blockSize) throws Exception {
+        String sequence = "IdUniquenessCheck-" + Long.toString(System.currentTimeMillis(), 36);
+        ExecutorService threads = Executors.newFixedThreadPool(generators);
+        List<Future<long[]>> results = new ArrayList<>();
+        AtomicLong misordered = new AtomicLong();
+        long start = System.nanoTime();
+        try {
+            for (int g = 0; g < generators; g++) {
+                BlockSequenceIdGenerator generator = new BlockSequenceIdGenerator(sequence, blockSize);
+                results.add(threads.submit(() -> draw(generator, perGenerator, misordered)));
+            }
+            long[] all = new long[generators * perGenerator];
+            int at = 0;
+            for (Future<long[]> result : results) {
+                long[] values = result.get();
+                System.arraycopy(values, 0, all, at, values.length);
+                at += values.length;
+            }
+            double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+            Arrays.sort(all);
+            long duplicates = 0;
+            for (int i = 1; i < all.length; i++) {
+                if (all[i] == all[i - 1]) {
+                    duplicates++;
+                }
+            }
+            System.out.println(all.length + " IDs from " + generators + " generators with blocks of " + blockSize
+                    + " in " + String.format("%.3f", seconds) + " s");
+            System.out.println("Duplicate IDs:               " + duplicates);
+            System.out.println("Out of order in a generator: " + misordered.get());
+            long failures = duplicates + misordered.get();
+            System.out.println(failures == 0 ? "All IDs unique and increasing" : "ID check FAILED");
+            return failures;
+        } finally {
+            threads.shutdown();
+        }
+    }
+
+    // returns the IDs as numbers; order is checked on the strings as well, that is how the clustered index sorts
+    private static long[] draw(BlockSequenceIdGenerator generator, int count, AtomicLong misordered)
+            throws Exception {
+        long[] values = new long[count];
+        String previous = null;
+        for (int i = 0; i < count; i++) {
+            String id = generator.nextId();
+            values[i] = Long.parseLong(id, 36);
+            if (previous != null && (values[i] <= values[i - 1] || id.compareTo(previous) <= 0)) {
+                misordered.incrementAndGet();
+            }
+            previous = id;
+        }
+        return values;
+    }
+}
\ No newline at end of file
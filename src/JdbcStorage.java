@@ -0,0 +1,664 @@
+package scheduler.db;
+
+import scheduler.util.Metrics;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+// The SQL Server database, reached through the connection pool. Every statement comes from SqlStatement so it is
+// prepared once per pooled connection.
+public class JdbcStorage implements Storage {
+
+    private static final int UPLOAD_BATCH_SIZE = 500;
+    private static final int EXPORT_FETCH_SIZE = 5_000;
+
+    private static final JdbcStorage instance = new JdbcStorage();
+
+    private JdbcStorage() {
+    }
+
+    public static JdbcStorage getInstance() {
+        return instance;
+    }
+
+    @Override
+    public void open() throws IOException, SQLException {
+        for (String script : new SchemaMigrator().migrate()) {
+            System.out.println("Applied migration " + script);
+        }
+    }
+
+    @Override
+    public void close() {
+        SlowQueryLog log = SlowQueryLog.isEnabled() ? SlowQueryLog.getInstance() : null;
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    @Override
+    public void addAccount(Account account, String username, byte[] salt, byte[] hash, int iterations)
+            throws SQLException {
+        ConnectionManager cm = connect();
+        try {
+            PreparedStatement statement = cm.prepare(account == Account.CAREGIVER
+                    ? SqlStatement.ADD_CAREGIVER : SqlStatement.ADD_PATIENT);
+            statement.setString(1, username);
+            statement.setBytes(2, salt);
+            statement.setBytes(3, hash);
+            statement.setInt(4, iterations);
+            update(statement);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public Credentials getCredentials(Account account, String username) throws SQLException {
+        ConnectionManager cm = connect();
+        try {
+            PreparedStatement statement = cm.prepare(account == Account.CAREGIVER
+                    ? SqlStatement.GET_CAREGIVER : SqlStatement.GET_PATIENT);
+            statement.setString(1, username);
+            ResultSet resultSet = query(statement);
+            if (!resultSet.next()) {
+                return null;
+            }
+            return new Credentials(resultSet.getBytes("Salt"), resultSet.getBytes("Hash"),
+                    resultSet.getInt("Iterations"));
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public void updateCredentials(Account account, String username, byte[] salt, byte[] hash, int iterations)
+            throws SQLException {
+        ConnectionManager cm = connect();
+        try {
+            PreparedStatement statement = cm.prepare(account == Account.CAREGIVER
+                    ? SqlStatement.UPGRADE_CAREGIVER_HASH : SqlStatement.UPGRADE_PATIENT_HASH);
+            statement.setBytes(1, salt);
+            statement.setBytes(2, hash);
+            statement.setInt(3, iterations);
+            statement.setString(4, username);
+            update(statement);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public boolean accountExists(Account account, String username) throws SQLException {
+        ConnectionManager cm = connect();
+        try {
+            PreparedStatement statement = cm.prepare(account == Account.CAREGIVER
+                    ? SqlStatement.CAREGIVER_EXISTS : SqlStatement.PATIENT_EXISTS);
+            statement.setString(1, username);
+            ResultSet resultSet = query(statement);
+            // returns false if the cursor is not before the first record or if there are no rows in the ResultSet.
+            return resultSet.isBeforeFirst();
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public void forEachUsername(Account account, Consumer<String> action) throws SQLException {
+        ConnectionManager cm = connect();
+        try {
+            PreparedStatement statement = cm.prepare(account == Account.CAREGIVER
+                    ? SqlStatement.LIST_CAREGIVER_USERNAMES : SqlStatement.LIST_PATIENT_USERNAMES);
+            statement.setFetchSize(10_000);
+            ResultSet resultSet = query(statement);
+            while (resultSet.next()) {
+                action.accept(resultSet.getString("Username"));
+            }
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public void addAvailability(Date date, String caregiver) throws SQLException {
+        ConnectionManager cm = connect();
+        try {
+            PreparedStatement statement = cm.prepare(SqlStatement.ADD_AVAILABILITY);
+            statement.setDate(1, date);
+            statement.setString(2, caregiver);
+            update(statement);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public List<Date> addAvailabilities(String caregiver, Collection<Date> dates) throws SQLException {
+        ConnectionManager cm = connect();
+        Connection con = cm.getConnection();
+        List<Date> inserted = new ArrayList<>();
+        try {
+            con.setAutoCommit(false);
+            PreparedStatement statement = cm.prepare(SqlStatement.ADD_AVAILABILITY_IF_ABSENT);
+            List<Date> batch = new ArrayList<>();
+            for (Date d : dates) {
+                statement.setDate(1, d);
+                statement.setString(2, caregiver);
+                statement.setDate(3, d);
+                statement.setString(4, caregiver);
+                statement.addBatch();
+                batch.add(d);
+                if (batch.size() == UPLOAD_BATCH_SIZE) {
+                    collectInserted(batch(statement), batch, inserted);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                collectInserted(batch(statement), batch, inserted);
+            }
+            commit(con);
+        } catch (SQLException e) {
+            rollbackQuietly(con);
+            throw e;
+        } finally {
+            cm.closeConnection();
+        }
+        return inserted;
+    }
+
+    private static void collectInserted(int[] counts, List<Date> batch, List<Date> inserted) {
+        for (int i = 0; i < counts.length; i++) {
+            // SUCCESS_NO_INFO only says the row is there now, which is all the index needs
+            if (counts[i] > 0 || counts[i] == Statement.SUCCESS_NO_INFO) {
+                inserted.add(batch.get(i));
+            }
+        }
+    }
+
+    @Override
+    public void forEachAvailability(BiConsumer<LocalDate, String> action) throws SQLException {
+        ConnectionManager cm = connect();
+        try {
+            PreparedStatement statement = cm.prepare(SqlStatement.LIST_AVAILABILITIES);
+            ResultSet resultSet = query(statement);
+            while (resultSet.next()) {
+                action.accept(resultSet.getDate("Time").toLocalDate(), resultSet.getString("Username"));
+            }
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public void addVaccine(String name, int doses) throws SQLException {
+        ConnectionManager cm = connect();
+        try {
+            PreparedStatement statement = cm.prepare(SqlStatement.ADD_VACCINE);
+            statement.setString(1, name);
+            statement.setInt(2, doses);
+            update(statement);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public Integer getDoses(String name) throws SQLException {
+        ConnectionManager cm = connect();
+        try {
+            PreparedStatement statement = cm.prepare(SqlStatement.GET_VACCINE_DOSES);
+            statement.setString(1, name);
+            ResultSet resultSet = query(statement);
+            return resultSet.next() ? resultSet.getInt("Doses") : null;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public void forEachVaccine(BiConsumer<String, Integer> action) throws SQLException {
+        ConnectionManager cm = connect();
+        try {
+            PreparedStatement statement = cm.prepare(SqlStatement.LIST_VACCINES);
+            ResultSet resultSet = query(statement);
+            while (resultSet.next()) {
+                action.accept(resultSet.getString("Name"), resultSet.getInt("Doses"));
+            }
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // the catalog is a handful of rows, one read of all of it beats a query per vaccine
+    @Override
+    public Map<String, Stock> getStocks(Collection<String> names) throws SQLException {
+        // table name -> the spelling the caller asked with, names compare case-insensitively like the column
+        Map<String, String> wanted = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (String name : names) {
+            wanted.put(name, name);
+        }
+        Map<String, Stock> stocks = new HashMap<>();
+        ConnectionManager cm = connect();
+        try {
+            PreparedStatement statement = cm.prepare(SqlStatement.LIST_VACCINE_STOCK);
+            ResultSet resultSet = query(statement);
+            while (resultSet.next()) {
+                String name = resultSet.getString("Name");
+                if (wanted.containsKey(name)) {
+                    stocks.put(wanted.get(name), new Stock(resultSet.getInt("Doses"), resultSet.getInt("Version")));
+                }
+            }
+            return stocks;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public Set<String> compareAndSetDoses(Map<String, Stock> read, Map<String, Integer> doses)
+            throws SQLException {
+        List<String> names = new ArrayList<>(doses.keySet());
+        ConnectionManager cm = connect();
+        Connection con = cm.getConnection();
+        try {
+            con.setAutoCommit(false);
+            PreparedStatement statement = cm.prepare(SqlStatement.SET_VACCINE_DOSES);
+            for (String name : names) {
+                statement.setInt(1, doses.get(name));
+                statement.setString(2, name);
+                statement.setInt(3, read.get(name).getVersion());
+                statement.addBatch();
+            }
+            int[] counts = batch(statement);
+            commit(con);
+            Set<String> changed = new HashSet<>();
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] == 0) {
+                    changed.add(names.get(i));
+                }
+            }
+            return changed;
+        } catch (SQLException e) {
+            rollbackQuietly(con);
+            throw e;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public void mergeDoses(Map<String, Integer> doses) throws SQLException {
+        ConnectionManager cm = connect();
+        Connection con = cm.getConnection();
+        try {
+            con.setAutoCommit(false);
+            PreparedStatement statement = cm.prepare(SqlStatement.MERGE_VACCINE_DOSES);
+            for (Map.Entry<String, Integer> entry : doses.entrySet()) {
+                statement.setString(1, entry.getKey());
+                statement.setInt(2, entry.getValue());
+                statement.addBatch();
+            }
+            batch(statement);
+            commit(con);
+        } catch (SQLException e) {
+            rollbackQuietly(con);
+            throw e;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public ReservationEngine.Reservation reserve(String appointmentId, Date date, String vaccine, String patient,
+            Iterable<String> candidates, Consumer<String> stale) throws SQLException {
+        ConnectionManager cm = connect();
+        Connection con = cm.getConnection();
+        try {
+            con.setAutoCommit(false);
+            ReservationEngine.Reservation reservation =
+                    tryReserve(cm, appointmentId, date, vaccine, patient, candidates, stale);
+            if (reservation.getStatus() == ReservationEngine.Status.RESERVED) {
+                commit(con);
+            } else {
+                rollback(con);
+            }
+            return reservation;
+        } catch (SQLException e) {
+            rollbackQuietly(con);
+            throw e;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static ReservationEngine.Reservation tryReserve(ConnectionManager cm, String appointmentId, Date date,
+            String vaccine, String patient, Iterable<String> candidates, Consumer<String> stale) throws SQLException {
+        String caregiver = claimCaregiver(cm, date, candidates.iterator(), stale);
+        if (caregiver == null) {
+            return new ReservationEngine.Reservation(ReservationEngine.Status.NO_CAREGIVER, null, null);
+        }
+
+        // takes one dose only if there is one left, the row count tells us whether it worked
+        PreparedStatement statement2 = cm.prepare(SqlStatement.CLAIM_DOSE);
+        statement2.setString(1, vaccine);
+        if (update(statement2) == 0) {
+            PreparedStatement statement3 = cm.prepare(SqlStatement.CHECK_VACCINE);
+            statement3.setString(1, vaccine);
+            ResultSet rs3 = query(statement3);
+            return new ReservationEngine.Reservation(rs3.next()
+                    ? ReservationEngine.Status.NO_DOSES : ReservationEngine.Status.NO_VACCINE, null, null);
+        }
+
+        PreparedStatement statement4 = cm.prepare(SqlStatement.ADD_APPOINTMENT);
+        statement4.setString(1, appointmentId);
+        statement4.setDate(2, date);
+        statement4.setString(3, vaccine);
+        statement4.setString(4, patient);
+        statement4.setString(5, caregiver);
+        update(statement4);
+        return new ReservationEngine.Reservation(ReservationEngine.Status.RESERVED, appointmentId, caregiver);
+    }
+
+    // Claims exactly the candidate's slot. The first pass skips rows other bookings hold, so concurrent bookings
+    // for a date take different caregivers instead of queueing on one row. Only if that finds nothing are the
+    // skipped candidates waited for; a zero row count there means the caller's view was behind the table (another
+    // process took the slot), so the candidate is reported as stale and the next one tried.
+    private static String claimCaregiver(ConnectionManager cm, Date date, Iterator<String> candidates,
+            Consumer<String> stale) throws SQLException {
+        PreparedStatement statement = cm.prepare(SqlStatement.CLAIM_UNLOCKED_AVAILABILITY);
+        List<String> skipped = new ArrayList<>();
+        while (candidates.hasNext()) {
+            String caregiver = candidates.next();
+            statement.setDate(1, date);
+            statement.setString(2, caregiver);
+            if (update(statement) == 1) {
+                return caregiver;
+            }
+            skipped.add(caregiver);
+        }
+        statement = cm.prepare(SqlStatement.CLAIM_AVAILABILITY);
+        for (String caregiver : skipped) {
+            statement.setDate(1, date);
+            statement.setString(2, caregiver);
+            if (update(statement) == 1) {
+                return caregiver;
+            }
+            stale.accept(caregiver);
+        }
+        return null;
+    }
+
+    @Override
+    public List<Appointment> reserveAll(List<Appointment> requests, Iterable<String> candidates,
+            Consumer<String> stale) throws SQLException {
+        ConnectionManager cm = connect();
+        Connection con = cm.getConnection();
+        try {
+            con.setAutoCommit(false);
+            List<Appointment> booked = new ArrayList<>();
+            Iterator<String> free = candidates.iterator();
+            // a caregiver claimed for a request that then found no dose is kept for the next request
+            String caregiver = null;
+            Date date = null;
+            for (Appointment request : requests) {
+                date = request.getTime();
+                if (caregiver == null) {
+                    caregiver = claimCaregiver(cm, date, free, stale);
+                    if (caregiver == null) {
+                        break;
+                    }
+                }
+                PreparedStatement claimDose = cm.prepare(SqlStatement.CLAIM_DOSE);
+                claimDose.setString(1, request.getVaccine());
+                if (update(claimDose) == 0) {
+                    continue;
+                }
+                booked.add(new Appointment(request.getAppointmentId(), date, request.getVaccine(),
+                        request.getPatient(), caregiver));
+                caregiver = null;
+            }
+            if (caregiver != null) {
+                PreparedStatement giveBack = cm.prepare(SqlStatement.ADD_AVAILABILITY);
+                giveBack.setDate(1, date);
+                giveBack.setString(2, caregiver);
+                update(giveBack);
+            }
+            if (!booked.isEmpty()) {
+                PreparedStatement insert = cm.prepare(SqlStatement.ADD_APPOINTMENT);
+                for (Appointment appointment : booked) {
+                    insert.setString(1, appointment.getAppointmentId());
+                    insert.setDate(2, appointment.getTime());
+                    insert.setString(3, appointment.getVaccine());
+                    insert.setString(4, appointment.getPatient());
+                    insert.setString(5, appointment.getCaregiver());
+                    insert.addBatch();
+                }
+                batch(insert);
+            }
+            commit(con);
+            return booked;
+        } catch (SQLException e) {
+            rollbackQuietly(con);
+            throw e;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public List<Appointment> cancelAppointment(String appointmentId, Account owner, String username)
+            throws SQLException {
+        return cancel(owner == Account.CAREGIVER
+                ? SqlStatement.CANCEL_CAREGIVER_APPOINTMENT : SqlStatement.CANCEL_PATIENT_APPOINTMENT,
+                appointmentId, username);
+    }
+
+    @Override
+    public List<Appointment> cancelCaregiverDay(String caregiver, Date date) throws SQLException {
+        return cancel(SqlStatement.CANCEL_CAREGIVER_DAY, caregiver, date);
+    }
+
+    @Override
+    public List<Appointment> cancelVaccineDay(String vaccine, Date date) throws SQLException {
+        return cancel(SqlStatement.CANCEL_VACCINE_DAY, vaccine, date);
+    }
+
+    // one round trip and one transaction however many appointments match
+    private static List<Appointment> cancel(SqlStatement sql, String key, Object value) throws SQLException {
+        ConnectionManager cm = connect();
+        Connection con = cm.getConnection();
+        try {
+            con.setAutoCommit(false);
+            PreparedStatement statement = cm.prepare(sql);
+            statement.setString(1, key);
+            if (value instanceof Date) {
+                statement.setDate(2, (Date) value);
+            } else {
+                statement.setString(2, (String) value);
+            }
+            ResultSet rs = query(statement);
+            List<Appointment> canceled = new ArrayList<>();
+            while (rs.next()) {
+                canceled.add(new Appointment(rs.getString(1), rs.getDate(2), rs.getString(3), rs.getString(4),
+                        rs.getString(5)));
+            }
+            commit(con);
+            return canceled;
+        } catch (SQLException e) {
+            rollbackQuietly(con);
+            throw e;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public List<Appointment> getAppointments(Account owner, String username, String after, int limit)
+            throws SQLException {
+        ConnectionManager cm = connect();
+        try {
+            PreparedStatement statement = cm.prepare(owner == Account.CAREGIVER
+                    ? SqlStatement.SHOW_CAREGIVER_APPOINTMENTS : SqlStatement.SHOW_PATIENT_APPOINTMENTS);
+            statement.setInt(1, limit);
+            statement.setString(2, username);
+            statement.setString(3, after);
+            statement.setFetchSize(limit);
+            ResultSet rs = query(statement);
+            List<Appointment> appointments = new ArrayList<>();
+            while (rs.next()) {
+                String other = rs.getString(4);
+                appointments.add(new Appointment(rs.getString(1), rs.getDate(3), rs.getString(2),
+                        owner == Account.PATIENT ? username : other, owner == Account.CAREGIVER ? username : other));
+            }
+            return appointments;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public long reserveIdBlock(String sequence, long size) throws SQLException {
+        ConnectionManager cm = connect();
+        try {
+            PreparedStatement statement = cm.prepare(SqlStatement.TAKE_APPOINTMENT_ID_BLOCK);
+            statement.setLong(1, size);
+            statement.setString(2, sequence);
+            for (int attempt = 0; attempt < 2; attempt++) {
+                ResultSet resultSet = query(statement);
+                if (resultSet.next()) {
+                    return resultSet.getLong(1);
+                }
+                // first use on this database, another process may be creating the row at the same time
+                try {
+                    PreparedStatement create = cm.prepare(SqlStatement.CREATE_APPOINTMENT_ID_SEQUENCE);
+                    create.setString(1, sequence);
+                    update(create);
+                } catch (SQLException e) {
+                    if (!SqlErrors.isDuplicateKey(e)) {
+                        throw e;
+                    }
+                }
+            }
+            throw new SQLException("Could not reserve a block of " + sequence + " IDs");
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public void export(TableExporter.Table table, Date from, Date to, RowVisitor visitor)
+            throws IOException, SQLException {
+        String[] columns = table.getColumns();
+        StringBuilder query = new StringBuilder("SELECT ").append(String.join(", ", columns))
+                .append(" FROM ").append(table.getTableName()).append(" WHERE 1 = 1");
+        if (from != null) {
+            query.append(" AND Time >= ?");
+        }
+        if (to != null) {
+            query.append(" AND Time <= ?");
+        }
+
+        ConnectionManager cm = connect();
+        // the query depends on the table and range, so it is prepared here instead of coming from the cache
+        try (PreparedStatement statement = cm.getConnection().prepareStatement(query.toString(),
+                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            int parameter = 1;
+            if (from != null) {
+                statement.setDate(parameter++, from);
+            }
+            if (to != null) {
+                statement.setDate(parameter, to);
+            }
+            statement.setFetchSize(EXPORT_FETCH_SIZE);
+            ResultSet rs = query(statement);
+            String[] values = new String[columns.length];
+            while (rs.next()) {
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = rs.getString(i + 1);
+                }
+                visitor.visit(values);
+            }
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static ConnectionManager connect() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        if (cm.createConnection() == null) {
+            throw new SQLException("No database connection available");
+        }
+        return cm;
+    }
+
+    // every trip to the server goes through one of these, so Metrics can count and time it
+    private static ResultSet query(PreparedStatement statement) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return statement.executeQuery();
+        } finally {
+            Metrics.getInstance().roundTrip(System.nanoTime() - start);
+        }
+    }
+
+    private static int update(PreparedStatement statement) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return statement.executeUpdate();
+        } finally {
+            Metrics.getInstance().roundTrip(System.nanoTime() - start);
+        }
+    }
+
+    private static int[] batch(PreparedStatement statement) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return statement.executeBatch();
+        } finally {
+            Metrics.getInstance().roundTrip(System.nanoTime() - start);
+        }
+    }
+
+    private static void commit(Connection con) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            con.commit();
+        } finally {
+            Metrics.getInstance().roundTrip(System.nanoTime() - start);
+        }
+    }
+
+    private static void rollback(Connection con) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            con.rollback();
+        } finally {
+            Metrics.getInstance().roundTrip(System.nanoTime() - start);
+        }
+    }
+
+    private static void rollbackQuietly(Connection con) {
+        try {
+            rollback(con);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+}
\ No newline at end of file
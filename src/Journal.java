@@ -0,0 +1,229 @@
+package scheduler.db;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+// Append-only log file mapped into memory. Each entry is [length][crc][payload] and holds one whole transaction,
+// so replay applies a transaction completely or not at all. An append is a memory copy; the pages reach the
+// disk when the OS writes them back or when sync() forces them, whichever comes first.
+class Journal {
+
+    private static final int HEADER_SIZE = 8;
+    private static final long MIN_CAPACITY = 1 << 20;
+
+    private final Path file;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private long position;
+
+    Journal(Path file) {
+        this.file = file;
+    }
+
+    // Maps the file and passes every complete entry to the consumer. A torn entry at the end is discarded, a bad
+    // entry with more data behind it means the file was damaged and fails the open instead of dropping the rest.
+    void open(Consumer<ByteBuffer> replay) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        map(Math.max(MIN_CAPACITY, channel.size()));
+        position = 0;
+        CRC32C crc = new CRC32C();
+        while (position + HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt((int) position);
+            if (length == 0) {
+                return;
+            }
+            // a half written length still reads as zero or as the whole value, anything out of range is damage
+            if (length < 0 || position + HEADER_SIZE + length > buffer.capacity()) {
+                throw corrupt(position);
+            }
+            ByteBuffer payload = buffer.duplicate();
+            payload.position((int) position + HEADER_SIZE).limit((int) position + HEADER_SIZE + length);
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != buffer.getInt((int) position + 4)) {
+                long end = position + HEADER_SIZE + length;
+                for (int i = (int) end; i < buffer.capacity(); i++) {
+                    if (buffer.get(i) != 0) {
+                        throw corrupt(position);
+                    }
+                }
+                // the process died in the middle of the last append, clear the leftovers so they can never pass
+                // for an entry
+                for (int i = (int) position; i < end; i++) {
+                    buffer.put(i, (byte) 0);
+                }
+                return;
+            }
+            replay.accept(payload.slice());
+            position += HEADER_SIZE + length;
+        }
+    }
+
+    private IOException corrupt(long offset) throws IOException {
+        channel.close();
+        return new IOException("Journal is corrupt at offset " + offset + ", entries after it cannot be read: "
+                + file);
+    }
+
+    void append(byte[] payload) throws IOException {
+        long needed = position + HEADER_SIZE + payload.length + HEADER_SIZE;
+        if (needed > buffer.capacity()) {
+            long capacity = buffer.capacity();
+            while (capacity < needed) {
+                capacity *= 2;
+            }
+            map(capacity);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(payload);
+        int at = (int) position;
+        buffer.put(at + HEADER_SIZE, payload);
+        buffer.putInt(at + 4, (int) crc.getValue());
+        // the length goes last, until it is written the entry is not there
+        buffer.putInt(at, payload.length);
+        position += HEADER_SIZE + payload.length;
+    }
+
+    void sync() {
+        buffer.force();
+    }
+
+    long size() {
+        return position;
+    }
+
+    // Replaces the whole log with the given entries: they are written to a new file which is moved over the old
+    // one only after it is on disk, so a crash leaves either the old log or the new one. The new file stays open
+    // through the move and is only swapped in once the move worked, so a failure leaves the old log in use.
+    void rewrite(Iterable<byte[]> entries) throws IOException {
+        Path compacted = file.resolveSibling(file.getFileName() + ".compact");
+        Files.deleteIfExists(compacted);
+        Journal next = new Journal(compacted);
+        next.open(payload -> { });
+        try {
+            for (byte[] entry : entries) {
+                next.append(entry);
+            }
+            next.sync();
+            sync();
+            Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            next.channel.close();
+            Files.deleteIfExists(compacted);
+            throw e;
+        }
+        FileChannel previous = channel;
+        channel = next.channel;
+        buffer = next.buffer;
+        position = next.position;
+        previous.close();
+        syncDirectory();
+    }
+
+    void close() throws IOException {
+        sync();
+        channel.close();
+    }
+
+    // the move is an entry in the directory, it only survives a crash once the directory is flushed as well
+    private void syncDirectory() throws IOException {
+        FileChannel directory;
+        try {
+            directory = FileChannel.open(file.toAbsolutePath().getParent(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            // Windows cannot open a directory, there the move is already durable when it returns
+            return;
+        }
+        try (FileChannel d = directory) {
+            d.force(true);
+        }
+    }
+
+    private void map(long capacity) throws IOException {
+        if (capacity > Integer.MAX_VALUE) {
+            throw new IOException("Journal is full, it needs compacting: " + file);
+        }
+        // mapping past the end grows the file, the new part reads as zeros
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    // Builds the payload of one entry. Strings and byte arrays are stored with their length in front.
+    static class Entry {
+        private byte[] bytes = new byte[256];
+        private int size;
+
+        Entry putByte(int value) {
+            ensure(1);
+            bytes[size++] = (byte) value;
+            return this;
+        }
+
+        Entry putInt(int value) {
+            ensure(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                bytes[size++] = (byte) (value >>> shift);
+            }
+            return this;
+        }
+
+        Entry putLong(long value) {
+            putInt((int) (value >>> 32));
+            return putInt((int) value);
+        }
+
+        Entry putBytes(byte[] value) {
+            putInt(value.length);
+            ensure(value.length);
+            System.arraycopy(value, 0, bytes, size, value.length);
+            size += value.length;
+            return this;
+        }
+
+        Entry putString(String value) {
+            return putBytes(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        int size() {
+            return size;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+            }
+        }
+    }
+
+    static byte[] getBytes(ByteBuffer payload) {
+        byte[] value = new byte[payload.getInt()];
+        payload.get(value);
+        return value;
+    }
+
+    static String getString(ByteBuffer payload) {
+        return new String(getBytes(payload), StandardCharsets.UTF_8);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,325 @@
+package scheduler;
+
+import scheduler.db.EmbeddedStorage;
+import scheduler.db.Storage;
+import scheduler.db.TableExporter;
+import scheduler.db.VaccineInventory;
+import scheduler.model.Caregiver;
+import scheduler.model.Patient;
+import scheduler.model.Vaccine;
+import scheduler.util.LatencyHistogram;
+import scheduler.util.PasswordHasher;
+import scheduler.util.Util;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Simulates a vaccine launch: seeds caregivers, patients, stock and calendars, then sends a mix of login,
+// search, reserve and show commands through Scheduler.execute at a fixed arrival rate for a while. Commands
+// are started on schedule whether or not earlier ones have finished, and latency is measured from the
+// scheduled start, so a server that falls behind shows up as queueing time instead of a lower request rate.
+// Afterwards the appointments are checked for overselling: a caregiver booked twice on a day, more
+// appointments than doses, or stock that does not match the appointments that were made. It seeds thousands of
+// accounts, so it only runs against the embedded storage unless --allow-jdbc true says the database is a test one.
+//
+// java scheduler.LoadGenerator [--caregivers 200] [--patients 5000] [--doses 2000] [--days 14] [--hot-days 2]
+//         [--start <date>] [--rate 500] [--duration 60] [--threads 32] [--mix login=5,search=30,reserve=50,show=15]
+//         [--allow-jdbc true]
+public class LoadGenerator {
+
+    private static final String PASSWORD = "load-password";
+    private static final String[] COMMANDS = {"login", "search", "reserve", "show"};
+
+    private final Map<String, String> options;
+    private final int caregiverCount;
+    private final int patientCount;
+    private final int doses;
+    private final int days;
+    private final int hotDays;
+    private final LocalDate start;
+    private final int rate;
+    private final int duration;
+    private final int threads;
+    private final int[] mix = new int[COMMANDS.length];
+
+    private final String prefix = "l" + Long.toString(System.currentTimeMillis(), 36);
+    private final String vaccine = prefix + "-vaccine";
+    private final List<Session> sessions = new ArrayList<>();
+    private final List<String> usernames = new ArrayList<>();
+    private final Map<String, LatencyHistogram> latencies = new LinkedHashMap<>();
+    private final Map<String, AtomicLong> failures = new HashMap<>();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong booked = new AtomicLong();
+
+    private LoadGenerator(Map<String, String> options) {
+        this.options = options;
+        this.caregiverCount = intOption("caregivers", 200);
+        this.patientCount = intOption("patients", 5_000);
+        this.doses = intOption("doses", 2_000);
+        this.days = intOption("days", 14);
+        this.hotDays = Math.min(days, intOption("hot-days", 2));
+        this.start = options.containsKey("start") ? LocalDate.parse(options.get("start"))
+                : LocalDate.now().plusDays(1);
+        this.rate = intOption("rate", 500);
+        this.duration = intOption("duration", 60);
+        this.threads = intOption("threads", 32);
+        int total = 0;
+        for (String weight : options.getOrDefault("mix", "login=5,search=30,reserve=50,show=15").split(",")) {
+            String[] pair = weight.split("=");
+            int command = List.of(COMMANDS).indexOf(pair[0].trim());
+            if (pair.length != 2 || command < 0) {
+                throw new IllegalArgumentException("Unknown mix entry: " + weight);
+            }
+            mix[command] = Integer.parseInt(pair[1].trim());
+            if (mix[command] < 0) {
+                throw new IllegalArgumentException("Unknown mix entry: " + weight);
+            }
+            total += mix[command];
+        }
+        if (total <= 0) {
+            throw new IllegalArgumentException("The mix needs at least one command");
+        }
+        for (String command : COMMANDS) {
+            latencies.put(command, new LatencyHistogram());
+            failures.put(command, new AtomicLong());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 == args.length) {
+                System.out.println("Usage: LoadGenerator [--<option> <value>]...");
+                System.exit(1);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        LoadGenerator generator;
+        try {
+            generator = new LoadGenerator(options);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        Storage storage = Storage.getDefault();
+        if (!(storage instanceof EmbeddedStorage) && !Boolean.parseBoolean(options.get("allow-jdbc"))) {
+            System.out.println("The load generator only runs against the embedded storage, set StorageBackend=embedded"
+                    + " or pass --allow-jdbc true to seed the configured database");
+            System.exit(1);
+        }
+        storage.open();
+        long oversold;
+        try {
+            generator.seed();
+            generator.run();
+            oversold = generator.checkOverselling(storage);
+        } finally {
+            VaccineInventory.getInstance().shutdown();
+            storage.close();
+        }
+        if (oversold > 0) {
+            System.exit(2);
+        }
+    }
+
+    // everyone shares one password, hashed once, so seeding does not spend its time in the hasher
+    private void seed() throws Exception {
+        long begin = System.nanoTime();
+        PasswordHasher hasher = PasswordHasher.getInstance();
+        byte[] salt = Util.generateSalt();
+        byte[] hash = hasher.hash(PASSWORD, salt);
+        int iterations = hasher.getIterations();
+
+        new Vaccine.VaccineBuilder(vaccine, doses).build().saveToDB();
+        List<Date> calendar = new ArrayList<>();
+        for (int d = 0; d < days; d++) {
+            calendar.add(Date.valueOf(start.plusDays(d)));
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, 16)));
+        List<Future<?>> pending = new ArrayList<>();
+        for (int c = 0; c < caregiverCount; c++) {
+            String username = prefix + "-c" + c;
+            pending.add(pool.submit(() -> {
+                Caregiver caregiver = new Caregiver.CaregiverBuilder(username, salt, hash, iterations).build();
+                caregiver.saveToDB();
+                caregiver.uploadAvailability(calendar);
+                return null;
+            }));
+        }
+        for (int p = 0; p < patientCount; p++) {
+            String username = prefix + "-p" + p;
+            Session session = new Session(new PrintWriter(Writer.nullWriter()));
+            sessions.add(session);
+            usernames.add(username);
+            pending.add(pool.submit(() -> {
+                Patient patient = new Patient.PatientBuilder(username, salt, hash, iterations).build();
+                patient.saveToDB();
+                // every virtual user starts out logged in, the login command logs out and in again
+                session.setPatient(patient);
+                return null;
+            }));
+        }
+        try {
+            for (Future<?> task : pending) {
+                task.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+        System.out.println(String.format("Seeded %d caregivers over %d days, %d patients and %d doses of %s in %.1f s",
+                caregiverCount, days, patientCount, doses, vaccine, (System.nanoTime() - begin) / 1e9));
+    }
+
+    private void run() throws InterruptedException {
+        int weights = 0;
+        for (int weight : mix) {
+            weights += weight;
+        }
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        long total = (long) rate * duration;
+        long interval = 1_000_000_000L / Math.max(1, rate);
+        long begin = System.nanoTime();
+        long maxLag = 0;
+        System.out.println("Sending " + total + " commands at " + rate + "/s for " + duration + " s on "
+                + threads + " threads");
+        for (long i = 0; i < total; i++) {
+            long scheduled = begin + i * interval;
+            long wait = scheduled - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            } else {
+                maxLag = Math.max(maxLag, -wait);
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int pick = random.nextInt(weights);
+            int command = 0;
+            while (pick >= mix[command]) {
+                pick -= mix[command++];
+            }
+            int user = random.nextInt(sessions.size());
+            Session session = sessions.get(user);
+            String username = usernames.get(user);
+            String day = start.plusDays(random.nextInt(hotDays)).toString();
+            String name = COMMANDS[command];
+            workers.execute(() -> send(name, session, username, day, scheduled));
+        }
+        workers.shutdown();
+        workers.awaitTermination(1, TimeUnit.DAYS);
+        double seconds = (System.nanoTime() - begin) / 1e9;
+
+        System.out.println();
+        System.out.println(String.format("%-8s %9s %9s %10s %9s %9s %9s %9s %9s", "command", "count", "failed",
+                "ops/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms"));
+        long completed = 0;
+        for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            completed += histogram.getCount();
+            System.out.println(String.format("%-8s %9d %9d %10.1f %9.2f %9.2f %9.2f %9.2f %9.2f", entry.getKey(),
+                    histogram.getCount(), failures.get(entry.getKey()).get(), histogram.getCount() / seconds,
+                    histogram.getPercentileNanos(0.50) / 1e6, histogram.getPercentileNanos(0.90) / 1e6,
+                    histogram.getPercentileNanos(0.99) / 1e6, histogram.getPercentileNanos(0.999) / 1e6,
+                    histogram.getMaxNanos() / 1e6));
+        }
+        System.out.println(String.format("%d commands in %.1f s (%.1f/s), %d errors, %d appointments booked",
+                completed, seconds, completed / seconds, errors.get(), booked.get()));
+        if (maxLag > interval) {
+            // the generator itself could not keep up, the rate it offered was lower than asked for
+            System.out.println(String.format("Warning: commands were sent up to %.1f ms late", maxLag / 1e6));
+        }
+    }
+
+    // a virtual user runs one command at a time, like a person at a terminal would
+    private void send(String name, Session session, String username, String day, long scheduled) {
+        boolean failed;
+        try {
+            synchronized (session) {
+                if (name.equals("login")) {
+                    if (session.isLoggedIn()) {
+                        Scheduler.execute(session, "logout");
+                        session.takeFailure();
+                    }
+                    Scheduler.execute(session, "login_patient " + username + " " + PASSWORD);
+                } else if (name.equals("search")) {
+                    Scheduler.execute(session, "search_caregiver_schedule " + day);
+                } else if (name.equals("reserve")) {
+                    Scheduler.execute(session, "reserve " + day + " " + vaccine);
+                } else {
+                    Scheduler.execute(session, "show_appointments");
+                }
+                failed = session.takeFailure();
+            }
+            if (name.equals("reserve") && !failed) {
+                booked.incrementAndGet();
+            }
+        } catch (RuntimeException e) {
+            failed = true;
+            errors.incrementAndGet();
+            e.printStackTrace();
+        }
+        latencies.get(name).record(System.nanoTime() - scheduled);
+        if (failed) {
+            failures.get(name).incrementAndGet();
+        }
+    }
+
+    // returns the number of problems found
+    private long checkOverselling(Storage storage) throws Exception {
+        Map<String, Integer> perCaregiverDay = new HashMap<>();
+        long[] appointments = new long[1];
+        // every appointment on the calendar, not only this run's, so a slot sold twice across runs is caught too
+        storage.export(TableExporter.Table.APPOINTMENTS, Date.valueOf(start), Date.valueOf(start.plusDays(days - 1)),
+                row -> {
+                    perCaregiverDay.merge(row[1] + " " + row[4].toLowerCase(), 1, Integer::sum);
+                    if (row[2].equals(vaccine)) {
+                        appointments[0]++;
+                    }
+                });
+        long doubleBooked = perCaregiverDay.values().stream().filter(n -> n > 1).mapToLong(n -> n - 1).sum();
+        long overDoses = Math.max(0, appointments[0] - doses);
+        Integer left = storage.getDoses(vaccine);
+        long drift = left == null ? doses : Math.abs(doses - appointments[0] - left);
+        long unrecorded = Math.abs(booked.get() - appointments[0]);
+
+        System.out.println();
+        System.out.println(appointments[0] + " appointments for " + vaccine + ", " + left + " doses left");
+        System.out.println("Caregiver days booked twice:      " + doubleBooked);
+        System.out.println("Appointments beyond the stock:    " + overDoses);
+        System.out.println("Doses not matching appointments:  " + drift);
+        System.out.println("Bookings reported but not stored: " + unrecorded);
+        long problems = doubleBooked + overDoses + drift + unrecorded;
+        System.out.println(problems == 0 ? "No overselling" : "OVERSOLD");
+        return problems;
+    }
+
+    private int intOption(String name, int defaultValue) {
+        String value = options.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            if (parsed > 0) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Invalid value for --" + name + ": " + value);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,227 @@
+package scheduler.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+
+// Per-command counters: a latency histogram, and how many database round trips, connection borrows and password
+// hashes each command caused. Scheduler.execute marks which command the current thread is running, the database
+// and hashing code only call roundTrip(), connectionAcquired() and hashComputed(). Work done outside of a command
+// (startup, the inventory flusher) is counted under "(background)". Next to them, per vaccine, how many stock
+// writes were attempted and how many found the row changed since it was read. Readable with the stats command or
+// over JMX.
+public class Metrics implements MetricsMXBean {
+
+    private static final String BACKGROUND = "(background)";
+
+    // created up front: every round trip, borrow and hash asks for it, so getInstance must not lock
+    private static final Metrics instance = register(new Metrics());
+
+    private final Map<String, Command> commands = new ConcurrentSkipListMap<>();
+    private final ThreadLocal<Command> current = new ThreadLocal<>();
+    private final Map<String, StockWrites> stockWrites = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    public static Metrics getInstance() {
+        return instance;
+    }
+
+    private static Metrics register(Metrics metrics) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName("scheduler:type=Metrics"));
+        } catch (Exception e) {
+            // the counters still work, they are only missing from JMX
+            e.printStackTrace();
+        }
+        return metrics;
+    }
+
+    // counts everything this thread does until end() under the given command
+    public Command begin(String name) {
+        Command command = command(name);
+        current.set(command);
+        return command;
+    }
+
+    public void end(Command command, long nanos, boolean failed) {
+        current.remove();
+        command.latency.record(nanos);
+        if (failed) {
+            command.failures.increment();
+        }
+    }
+
+    public void roundTrip(long nanos) {
+        Command command = current();
+        command.roundTrips.increment();
+        command.databaseNanos.add(nanos);
+    }
+
+    public void connectionAcquired() {
+        current().connections.increment();
+    }
+
+    public void hashComputed() {
+        current().hashes.increment();
+    }
+
+    // one compare-and-set of the vaccine's stock, conflict when its version had moved on
+    public void stockWritten(String vaccine, boolean conflict) {
+        StockWrites writes = stockWrites.computeIfAbsent(vaccine, k -> new StockWrites());
+        writes.attempts.increment();
+        if (conflict) {
+            writes.conflicts.increment();
+        }
+    }
+
+    // name of the command this thread is running
+    public String getCurrentCommand() {
+        return current().name;
+    }
+
+    public List<CommandSnapshot> getCommands() {
+        List<CommandSnapshot> snapshots = new ArrayList<>();
+        for (Map.Entry<String, Command> entry : commands.entrySet()) {
+            snapshots.add(new CommandSnapshot(entry.getKey(), entry.getValue()));
+        }
+        return snapshots;
+    }
+
+    public List<StockSnapshot> getStockWrites() {
+        List<StockSnapshot> snapshots = new ArrayList<>();
+        for (Map.Entry<String, StockWrites> entry : stockWrites.entrySet()) {
+            snapshots.add(new StockSnapshot(entry.getKey(), entry.getValue()));
+        }
+        return snapshots;
+    }
+
+    public long getRoundTrips() {
+        return commands.values().stream().mapToLong(c -> c.roundTrips.sum()).sum();
+    }
+
+    public long getConnectionAcquisitions() {
+        return commands.values().stream().mapToLong(c -> c.connections.sum()).sum();
+    }
+
+    public long getHashComputations() {
+        return commands.values().stream().mapToLong(c -> c.hashes.sum()).sum();
+    }
+
+    public void reset() {
+        commands.clear();
+        stockWrites.clear();
+    }
+
+    // one line per command, averages are per run of the command
+    public String report() {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("%-26s %8s %7s %9s %9s %9s %9s %8s %9s %7s %7s%n", "command", "count", "failed",
+                "mean ms", "p50 ms", "p99 ms", "max ms", "trips/op", "db ms/op", "conn/op", "hash/op"));
+        for (CommandSnapshot c : getCommands()) {
+            long runs = Math.max(1, c.getCount());
+            out.append(String.format("%-26s %8d %7d %9.2f %9.2f %9.2f %9.2f %8.2f %9.2f %7.2f %7.2f%n",
+                    c.getName(), c.getCount(), c.getFailures(), c.getMeanMillis(), c.getP50Millis(),
+                    c.getP99Millis(), c.getMaxMillis(), (double) c.getRoundTrips() / runs,
+                    c.getDatabaseMillis() / runs, (double) c.getConnections() / runs, (double) c.getHashes() / runs));
+        }
+        out.append(getRoundTrips()).append(" database round trips, ").append(getConnectionAcquisitions())
+                .append(" connections borrowed, ").append(getHashComputations()).append(" passwords hashed\n");
+        for (StockSnapshot s : getStockWrites()) {
+            out.append(String.format("%s: %d stock writes, %d version conflicts (%.1f%%)%n", s.getVaccine(),
+                    s.getAttempts(), s.getConflicts(), s.getConflictRate() * 100));
+        }
+        return out.toString();
+    }
+
+    private Command current() {
+        Command command = current.get();
+        return command != null ? command : command(BACKGROUND);
+    }
+
+    private Command command(String name) {
+        Command command = commands.get(name);
+        return command != null ? command : commands.computeIfAbsent(name, Command::new);
+    }
+
+    public static class Command {
+        private final String name;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder roundTrips = new LongAdder();
+        private final LongAdder databaseNanos = new LongAdder();
+        private final LongAdder connections = new LongAdder();
+        private final LongAdder hashes = new LongAdder();
+
+        private Command(String name) {
+            this.name = name;
+        }
+    }
+
+    private static class StockWrites {
+        private final LongAdder attempts = new LongAdder();
+        private final LongAdder conflicts = new LongAdder();
+    }
+
+    public static class StockSnapshot {
+        private final String vaccine;
+        private final long attempts;
+        private final long conflicts;
+
+        private StockSnapshot(String vaccine, StockWrites writes) {
+            this.vaccine = vaccine;
+            this.attempts = writes.attempts.sum();
+            this.conflicts = writes.conflicts.sum();
+        }
+
+        public String getVaccine() { return vaccine; }
+        public long getAttempts() { return attempts; }
+        public long getConflicts() { return conflicts; }
+        public double getConflictRate() { return attempts == 0 ? 0 : (double) conflicts / attempts; }
+    }
+
+    public static class CommandSnapshot {
+        private final String name;
+        private final long count;
+        private final long failures;
+        private final double meanMillis;
+        private final double p50Millis;
+        private final double p99Millis;
+        private final double maxMillis;
+        private final long roundTrips;
+        private final double databaseMillis;
+        private final long connections;
+        private final long hashes;
+
+        private CommandSnapshot(String name, Command command) {
+            this.name = name;
+            this.count = command.latency.getCount();
+            this.failures = command.failures.sum();
+            this.meanMillis = command.latency.getMeanNanos() / 1e6;
+            this.p50Millis = command.latency.getPercentileNanos(0.50) / 1e6;
+            this.p99Millis = command.latency.getPercentileNanos(0.99) / 1e6;
+            this.maxMillis = command.latency.getMaxNanos() / 1e6;
+            this.roundTrips = command.roundTrips.sum();
+            this.databaseMillis = command.databaseNanos.sum() / 1e6;
+            this.connections = command.connections.sum();
+            this.hashes = command.hashes.sum();
+        }
+
+        public String getName() { return name; }
+        public long getCount() { return count; }
+        public long getFailures() { return failures; }
+        public double getMeanMillis() { return meanMillis; }
+        public double getP50Millis() { return p50Millis; }
+        public double getP99Millis() { return p99Millis; }
+        public double getMaxMillis() { return maxMillis; }
+        public long getRoundTrips() { return roundTrips; }
+        public double getDatabaseMillis() { return databaseMillis; }
+        public long getConnections() { return connections; }
+        public long getHashes() { return hashes; }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,19 @@
+package scheduler.util;
+
+import java.util.List;
+
+// What jconsole or any other JMX client sees under scheduler:type=Metrics
+public interface MetricsMXBean {
+
+    List<Metrics.CommandSnapshot> getCommands();
+
+    List<Metrics.StockSnapshot> getStockWrites();
+
+    long getRoundTrips();
+
+    long getConnectionAcquisitions();
+
+    long getHashComputations();
+
+    void reset();
+}
\ No newline at end of file
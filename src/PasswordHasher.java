@@ -0,0 +1,84 @@
+package scheduler.util;
+
+import java.security.MessageDigest;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs password hashing on a pool with one thread per core, so a burst of logins or sign-ups keeps every
+// core busy without piling up more hashing threads than there are cores. Callers hash before borrowing a
+// database connection or after giving it back, never while holding one.
+public class PasswordHasher {
+
+    private static final PasswordHasher instance = new PasswordHasher();
+
+    private final ExecutorService executor;
+    // cost used for new hashes, stored hashes with a lower cost are upgraded on the next login
+    private final int iterations;
+
+    private PasswordHasher() {
+        int configured = Util.HASH_STRENGTH;
+        String setting = System.getenv("HashIterations");
+        if (setting != null && !setting.isEmpty()) {
+            try {
+                configured = Math.max(1, Integer.parseInt(setting.trim()));
+            } catch (NumberFormatException e) {
+                System.out.println("Ignoring invalid value for HashIterations: " + setting);
+            }
+        }
+        this.iterations = configured;
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+            Thread t = new Thread(r, "password-hasher-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public static PasswordHasher getInstance() {
+        return instance;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    // hash with the configured cost
+    public byte[] hash(String password, byte[] salt) {
+        return hash(password, salt, iterations);
+    }
+
+    public byte[] hash(String password, byte[] salt, int iterations) {
+        Metrics.getInstance().hashComputed();
+        return await(() -> Util.generateHash(password, salt, iterations));
+    }
+
+    // storedIterations of 0 means the row predates the Iterations column and used the original cost
+    public boolean verify(String password, byte[] salt, byte[] storedHash, int storedIterations) {
+        byte[] calculatedHash = hash(password, salt, effectiveIterations(storedIterations));
+        // stored hashes come back zero-padded to the column width, so compare both without the padding
+        return MessageDigest.isEqual(Util.trim(storedHash), Util.trim(calculatedHash));
+    }
+
+    public boolean needsUpgrade(int storedIterations) {
+        return effectiveIterations(storedIterations) < iterations;
+    }
+
+    public static int effectiveIterations(int storedIterations) {
+        return storedIterations <= 0 ? Util.HASH_STRENGTH : storedIterations;
+    }
+
+    private byte[] await(Callable<byte[]> task) {
+        try {
+            return executor.submit(task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while hashing a password");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
\ No newline at end of file
@@ -1,47 +1,46 @@
 package scheduler.model;
 
-import scheduler.db.ConnectionManager;
+import scheduler.db.Storage;
+import scheduler.db.UsernameRegistry;
+import scheduler.util.PasswordHasher;
 import scheduler.util.Util;
 
-import java.sql.*;
-import java.util.Arrays;
+import java.sql.SQLException;
 
 public class Patient {
     private final String username;
     private final byte[] salt;
     private final byte[] hash;
+    private final int iterations;
 
     private Patient(PatientBuilder builder) {
         this.username = builder.username;
         this.salt = builder.salt;
         this.hash = builder.hash;
+        this.iterations = builder.iterations;
     }
 
     private Patient(PatientGetter getter) {
         this.username = getter.username;
         this.salt = getter.salt;
         this.hash = getter.hash;
+        this.iterations = getter.iterations;
     }
 
     // Getters
     public String getUsername() { return username; }
     public byte[] getSalt() { return salt; }
     public byte[] getHash() { return hash; }
+    public int getIterations() { return iterations; }
 
     public void saveToDB() throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-        String addPatient = "INSERT INTO Patients VALUES (? , ?, ?)";
         try {
-            PreparedStatement statement = con.prepareStatement(addPatient);
-            statement.setString(1, this.username);
-            statement.setBytes(2, this.salt);
-            statement.setBytes(3, this.hash);
-            statement.executeUpdate();
+            Storage.getDefault().addAccount(Storage.Account.PATIENT, this.username, this.salt, this.hash,
+                    this.iterations);
+            UsernameRegistry.patients().add(this.username);
         } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
+            // keep the error code, callers tell a taken username apart from other failures
+            throw new SQLException(e.getMessage(), e.getSQLState(), e.getErrorCode());
         }
     }
 
@@ -49,11 +48,17 @@ public class Patient {
         private final String username;
         private final byte[] salt;
         private final byte[] hash;
+        private final int iterations;
 
         public PatientBuilder(String username, byte[] salt, byte[] hash) {
+            this(username, salt, hash, Util.HASH_STRENGTH);
+        }
+
+        public PatientBuilder(String username, byte[] salt, byte[] hash, int iterations) {
             this.username = username;
             this.salt = salt;
             this.hash = hash;
+            this.iterations = iterations;
         }
 
         public Patient build() { return new Patient(this); }
@@ -64,6 +69,7 @@ public class Patient {
         private final String password;
         private byte[] salt;
         private byte[] hash;
+        private int iterations;
 
         public PatientGetter(String username, String password) {
             this.username = username;
@@ -71,30 +77,51 @@ public class Patient {
         }
 
         public Patient get() throws SQLException {
-            ConnectionManager cm = new ConnectionManager();
-            Connection con = cm.createConnection();
-            String getPatient = "Select Salt, Hash FROM Patients WHERE Username = ?";
+            byte[] salt;
+            byte[] hash;
+            int iterations;
             try {
-                PreparedStatement statement = con.prepareStatement(getPatient);
-                statement.setString(1, this.username);
-                ResultSet resultSet = statement.executeQuery();
-                while (resultSet.next()) {
-                    byte[] salt = resultSet.getBytes("Salt");
-                    byte[] hash = Util.trim(resultSet.getBytes("Hash"));
-                    byte[] calculatedHash = Util.generateHash(password, salt);
-                    if (!Arrays.equals(hash, calculatedHash)) {
-                        return null;
-                    } else {
-                        this.salt = salt;
-                        this.hash = hash;
-                        return new Patient(this);
-                    }
+                Storage.Credentials credentials =
+                        Storage.getDefault().getCredentials(Storage.Account.PATIENT, this.username);
+                if (credentials == null) {
+                    return null;
                 }
-                return null;
+                salt = credentials.getSalt();
+                // we need to call Util.trim() to get rid of the paddings,
+                // try to remove the use of Util.trim() and you'll see :)
+                hash = Util.trim(credentials.getHash());
+                iterations = PasswordHasher.effectiveIterations(credentials.getIterations());
             } catch (SQLException e) {
                 throw new SQLException();
-            } finally {
-                cm.closeConnection();
+            }
+
+            // check if the password matches, nothing in the storage is held while hashing
+            PasswordHasher hasher = PasswordHasher.getInstance();
+            if (!hasher.verify(password, salt, hash, iterations)) {
+                return null;
+            }
+            this.salt = salt;
+            this.hash = hash;
+            this.iterations = iterations;
+            if (hasher.needsUpgrade(iterations)) {
+                upgradeHash(hasher);
+            }
+            return new Patient(this);
+        }
+
+        // re-hashes the password with the configured cost, the login still succeeds if this fails
+        private void upgradeHash(PasswordHasher hasher) {
+            byte[] newSalt = Util.generateSalt();
+            byte[] newHash = hasher.hash(password, newSalt);
+
+            try {
+                Storage.getDefault().updateCredentials(Storage.Account.PATIENT, this.username, newSalt, newHash,
+                        hasher.getIterations());
+                this.salt = newSalt;
+                this.hash = newHash;
+                this.iterations = hasher.getIterations();
+            } catch (SQLException e) {
+                e.printStackTrace();
             }
         }
     }
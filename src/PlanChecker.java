@@ -0,0 +1,148 @@
+package scheduler.db;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Asks the server for the estimated plan of every hot statement and reports the ones that would read a whole
+// table or index. Run it after a migration, a missing index shows up here long before it shows up as latency.
+public class PlanChecker {
+
+    // operators that read every row of their object, seeks and key lookups are fine
+    private static final Set<String> SCANS = Set.of("Table Scan", "Clustered Index Scan", "Index Scan");
+
+    private static final Date SAMPLE_DATE = Date.valueOf("2030-01-01");
+
+    // statements on the command paths, with sample arguments of the right types; full reads such as the
+    // LIST_ statements that load the in-memory caches are left out on purpose
+    private static final Map<SqlStatement, Object[]> HOT_STATEMENTS = new LinkedHashMap<>();
+
+    static {
+        HOT_STATEMENTS.put(SqlStatement.GET_CAREGIVER, new Object[] {"caregiver"});
+        HOT_STATEMENTS.put(SqlStatement.CAREGIVER_EXISTS, new Object[] {"caregiver"});
+        HOT_STATEMENTS.put(SqlStatement.GET_PATIENT, new Object[] {"patient"});
+        HOT_STATEMENTS.put(SqlStatement.PATIENT_EXISTS, new Object[] {"patient"});
+        HOT_STATEMENTS.put(SqlStatement.ADD_AVAILABILITY_IF_ABSENT,
+                new Object[] {SAMPLE_DATE, "caregiver", SAMPLE_DATE, "caregiver"});
+        HOT_STATEMENTS.put(SqlStatement.CLAIM_AVAILABILITY, new Object[] {SAMPLE_DATE, "caregiver"});
+        HOT_STATEMENTS.put(SqlStatement.CLAIM_UNLOCKED_AVAILABILITY, new Object[] {SAMPLE_DATE, "caregiver"});
+        HOT_STATEMENTS.put(SqlStatement.GET_VACCINE_DOSES, new Object[] {"vaccine"});
+        HOT_STATEMENTS.put(SqlStatement.CHECK_VACCINE, new Object[] {"vaccine"});
+        HOT_STATEMENTS.put(SqlStatement.CLAIM_DOSE, new Object[] {"vaccine"});
+        HOT_STATEMENTS.put(SqlStatement.SET_VACCINE_DOSES, new Object[] {0, "vaccine", 0});
+        HOT_STATEMENTS.put(SqlStatement.SHOW_CAREGIVER_APPOINTMENTS, new Object[] {51, "caregiver", ""});
+        HOT_STATEMENTS.put(SqlStatement.SHOW_PATIENT_APPOINTMENTS, new Object[] {51, "patient", ""});
+        HOT_STATEMENTS.put(SqlStatement.TAKE_APPOINTMENT_ID_BLOCK, new Object[] {1000L, "Appointments"});
+        HOT_STATEMENTS.put(SqlStatement.CANCEL_PATIENT_APPOINTMENT, new Object[] {"000001", "patient"});
+        HOT_STATEMENTS.put(SqlStatement.CANCEL_CAREGIVER_APPOINTMENT, new Object[] {"000001", "caregiver"});
+        HOT_STATEMENTS.put(SqlStatement.CANCEL_CAREGIVER_DAY, new Object[] {"caregiver", SAMPLE_DATE});
+        HOT_STATEMENTS.put(SqlStatement.CANCEL_VACCINE_DAY, new Object[] {"vaccine", SAMPLE_DATE});
+    }
+
+    // returns one line per scan found, empty when every hot statement seeks
+    public List<String> check() throws SQLException {
+        List<String> scans = new ArrayList<>();
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        if (con == null) {
+            throw new SQLException("No database connection available");
+        }
+
+        try {
+            setShowPlan(con, true);
+            try {
+                for (Map.Entry<SqlStatement, Object[]> entry : HOT_STATEMENTS.entrySet()) {
+                    String plan = estimatedPlan(con, entry.getKey(), entry.getValue());
+                    for (String scan : findScans(plan)) {
+                        scans.add(entry.getKey() + ": " + scan);
+                    }
+                }
+            } finally {
+                // the setting belongs to the session, the pooled connection must not keep it
+                setShowPlan(con, false);
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        return scans;
+    }
+
+    // with SHOWPLAN_XML on the server compiles the statement and returns its plan instead of running it
+    private static String estimatedPlan(Connection con, SqlStatement sql, Object[] arguments) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(sql.getSql())) {
+            for (int i = 0; i < arguments.length; i++) {
+                statement.setObject(i + 1, arguments[i]);
+            }
+            StringBuilder plan = new StringBuilder();
+            boolean results = statement.execute();
+            while (true) {
+                if (results) {
+                    try (ResultSet rs = statement.getResultSet()) {
+                        while (rs.next()) {
+                            plan.append(rs.getString(1));
+                        }
+                    }
+                } else if (statement.getUpdateCount() == -1) {
+                    break;
+                }
+                results = statement.getMoreResults();
+            }
+            return plan.toString();
+        }
+    }
+
+    private static List<String> findScans(String plan) throws SQLException {
+        Document document;
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            document = factory.newDocumentBuilder().parse(new InputSource(new StringReader(plan)));
+        } catch (ParserConfigurationException | SAXException | IOException e) {
+            throw new SQLException("Could not read the plan: " + e.getMessage(), e);
+        }
+        List<String> scans = new ArrayList<>();
+        NodeList operators = document.getElementsByTagNameNS("*", "RelOp");
+        for (int i = 0; i < operators.getLength(); i++) {
+            Element operator = (Element) operators.item(i);
+            String physicalOp = operator.getAttribute("PhysicalOp");
+            if (!SCANS.contains(physicalOp)) {
+                continue;
+            }
+            // the scanned object is the first Object under the operator, before any nested RelOp
+            NodeList objects = operator.getElementsByTagNameNS("*", "Object");
+            Element object = objects.getLength() == 0 ? null : (Element) objects.item(0);
+            // table variables such as the cancel statements' @Canceled only hold the rows of one statement
+            if (object != null && object.getAttribute("Table").startsWith("[@")) {
+                continue;
+            }
+            String target = object == null ? "?" : object.getAttribute("Table")
+                    + (object.hasAttribute("Index") ? "." + object.getAttribute("Index") : "");
+            scans.add(physicalOp + " on " + target);
+        }
+        return scans;
+    }
+
+    private static void setShowPlan(Connection con, boolean on) throws SQLException {
+        try (Statement statement = con.createStatement()) {
+            statement.execute(on ? "SET SHOWPLAN_XML ON" : "SET SHOWPLAN_XML OFF");
+        }
+    }
+}
\ No newline at end of file
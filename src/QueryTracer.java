@@ -0,0 +1,197 @@
+package scheduler.db;
+
+import scheduler.util.Metrics;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Times every execute call on one borrowed connection and hands the ones over the threshold to SlowQueryLog,
+// with the SQL text, the bound parameters and the row count. Binary parameters (salts and hashes) are never
+// copied, only their length. Rows of a slow query are counted while the caller reads them, so its entry is
+// logged once the result set is read to the end or closed, or the connection is given back.
+class QueryTracer {
+
+    private final SlowQueryLog log;
+    private final long thresholdNanos;
+    private final List<SlowQueryLog.Query> reading = new ArrayList<>();
+
+    QueryTracer(SlowQueryLog log) {
+        this.log = log;
+        this.thresholdNanos = SlowQueryLog.getThresholdNanos();
+    }
+
+    Connection wrap(Connection con) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[] {Connection.class}, (proxy, method, args) -> {
+                    Object result = invoke(con, method, args);
+                    if (result instanceof Statement) {
+                        String sql = args != null && args.length > 0 && args[0] instanceof String
+                                ? (String) args[0] : null;
+                        return wrap((Statement) result, method.getReturnType(), sql);
+                    }
+                    return result;
+                });
+    }
+
+    PreparedStatement wrap(PreparedStatement statement, String sql) {
+        return (PreparedStatement) wrap(statement, PreparedStatement.class, sql);
+    }
+
+    // logs the slow queries whose results were not read to the end
+    void finish() {
+        for (SlowQueryLog.Query query : reading) {
+            log.add(query);
+        }
+        reading.clear();
+    }
+
+    private Object wrap(Statement statement, Class<?> type, String sql) {
+        return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+                new StatementHandler(statement, sql));
+    }
+
+    private class StatementHandler implements InvocationHandler {
+        private final Statement target;
+        private final String sql;
+        private final Map<Integer, String> parameters = new TreeMap<>();
+        private int batchSize = 0;
+
+        StatementHandler(Statement target, String sql) {
+            this.target = target;
+            this.sql = sql;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.startsWith("execute")) {
+                return execute(method, args);
+            }
+            if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+                parameters.put((Integer) args[0], name.equals("setNull") ? "NULL" : describe(args[1]));
+            } else if (name.equals("clearParameters")) {
+                parameters.clear();
+            } else if (name.equals("addBatch") && args == null) {
+                batchSize++;
+            } else if (name.equals("clearBatch")) {
+                batchSize = 0;
+            }
+            return QueryTracer.invoke(target, method, args);
+        }
+
+        private Object execute(Method method, Object[] args) throws Throwable {
+            String text = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : sql;
+            int batch = batchSize;
+            if (method.getName().startsWith("executeBatch") || method.getName().startsWith("executeLargeBatch")) {
+                batchSize = 0;
+            }
+            long start = System.nanoTime();
+            Object result;
+            try {
+                result = QueryTracer.invoke(target, method, args);
+            } catch (Throwable e) {
+                long elapsed = System.nanoTime() - start;
+                if (elapsed >= thresholdNanos) {
+                    log.add(query(text, batch, elapsed, -1, String.valueOf(e.getMessage())));
+                }
+                throw e;
+            }
+            long elapsed = System.nanoTime() - start;
+            if (elapsed < thresholdNanos) {
+                return result;
+            }
+
+            if (result instanceof ResultSet) {
+                SlowQueryLog.Query query = query(text, batch, elapsed, 0, null);
+                reading.add(query);
+                return trace((ResultSet) result, query);
+            }
+            long rows = -1;
+            if (result instanceof Integer || result instanceof Long) {
+                rows = ((Number) result).longValue();
+            } else if (result instanceof int[]) {
+                rows = 0;
+                for (int count : (int[]) result) {
+                    rows += Math.max(0, count);
+                }
+            } else if (result instanceof long[]) {
+                rows = 0;
+                for (long count : (long[]) result) {
+                    rows += Math.max(0, count);
+                }
+            } else if (Boolean.FALSE.equals(result)) {
+                rows = target.getUpdateCount();
+            }
+            log.add(query(text, batch, elapsed, rows, null));
+            return result;
+        }
+
+        private SlowQueryLog.Query query(String text, int batch, long elapsed, long rows, String error) {
+            List<String> bound = new ArrayList<>();
+            for (Map.Entry<Integer, String> parameter : parameters.entrySet()) {
+                bound.add(parameter.getKey() + "=" + parameter.getValue());
+            }
+            return new SlowQueryLog.Query(text == null ? "?" : text, bound, batch, elapsed, rows,
+                    Metrics.getInstance().getCurrentCommand(), error);
+        }
+    }
+
+    // counts rows as they are read, the entry is logged when the results run out
+    private ResultSet trace(ResultSet resultSet, SlowQueryLog.Query query) {
+        return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] {ResultSet.class},
+                (proxy, method, args) -> {
+                    Object result = invoke(resultSet, method, args);
+                    if (method.getName().equals("next")) {
+                        if (Boolean.TRUE.equals(result)) {
+                            query.addRow();
+                        } else {
+                            done(query);
+                        }
+                    } else if (method.getName().equals("close")) {
+                        done(query);
+                    }
+                    return result;
+                });
+    }
+
+    private void done(SlowQueryLog.Query query) {
+        if (reading.remove(query)) {
+            log.add(query);
+        }
+    }
+
+    // credentials are bound as bytes, so no byte array is ever written out
+    private static String describe(Object value) {
+        if (value == null) {
+            return "NULL";
+        }
+        if (value instanceof byte[]) {
+            return "<" + ((byte[]) value).length + " bytes redacted>";
+        }
+        if (value instanceof String) {
+            return "'" + value + "'";
+        }
+        if (value instanceof Number || value instanceof Boolean || value instanceof java.util.Date) {
+            return value.toString();
+        }
+        return "<" + value.getClass().getSimpleName() + " redacted>";
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
\ No newline at end of file
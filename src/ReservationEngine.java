@@ -0,0 +1,188 @@
+package scheduler.db;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class ReservationEngine {
+
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long BASE_BACKOFF_MS = 10;
+
+    private final AvailabilityIndex index = AvailabilityIndex.getInstance();
+    private final VaccineInventory inventory = VaccineInventory.getInstance();
+    private final CaregiverAllocator allocator = CaregiverAllocator.getDefault();
+    private final AppointmentIdGenerator idGenerator;
+    private final Storage storage = Storage.getDefault();
+
+    public ReservationEngine() {
+        this(AppointmentIdGenerator.getDefault());
+    }
+
+    public ReservationEngine(AppointmentIdGenerator idGenerator) {
+        this.idGenerator = idGenerator;
+    }
+
+    public enum Status {
+        RESERVED,
+        NO_CAREGIVER,
+        NO_VACCINE,
+        NO_DOSES
+    }
+
+    public static class Reservation {
+        private final Status status;
+        private final String appointmentId;
+        private final String caregiver;
+        // the patient's place on the waitlist after NO_CAREGIVER, 0 when they were not put on it
+        private final int waitlistPosition;
+
+        Reservation(Status status, String appointmentId, String caregiver) {
+            this(status, appointmentId, caregiver, 0);
+        }
+
+        Reservation(Status status, String appointmentId, String caregiver, int waitlistPosition) {
+            this.status = status;
+            this.appointmentId = appointmentId;
+            this.caregiver = caregiver;
+            this.waitlistPosition = waitlistPosition;
+        }
+
+        public Status getStatus() { return status; }
+        public String getAppointmentId() { return appointmentId; }
+        public String getCaregiver() { return caregiver; }
+        public int getWaitlistPosition() { return waitlistPosition; }
+    }
+
+    // Books one appointment for the patient. The caregiver slot, the dose and the appointment row are all claimed
+    // in a single transaction, so concurrent patients can never get the same slot or drive Doses below zero.
+    // A patient who finds no caregiver on a date that can still be booked goes on the waitlist.
+    public Reservation reserve(Date date, String vaccine, String patient) throws SQLException {
+        // a patient waiting for this date is booked by the waitlist or by this call, never by both
+        Waitlist waitlist = Waitlist.getInstance();
+        Storage.Appointment matched = waitlist.hold(date, vaccine, patient);
+        if (matched != null) {
+            return new Reservation(Status.RESERVED, matched.getAppointmentId(), matched.getCaregiver());
+        }
+        Reservation reservation = null;
+        int position;
+        try {
+            reservation = book(date, vaccine, patient);
+        } finally {
+            boolean booked = reservation != null && reservation.getStatus() == Status.RESERVED;
+            boolean join = reservation != null && reservation.getStatus() == Status.NO_CAREGIVER
+                    && !date.toLocalDate().isBefore(LocalDate.now()) && inventory.getDoses(vaccine) != null;
+            position = waitlist.release(date, vaccine, patient, booked, join);
+        }
+        return position == 0 ? reservation : new Reservation(Status.NO_CAREGIVER, null, null, position);
+    }
+
+    private Reservation book(Date date, String vaccine, String patient) throws SQLException {
+        // answer the obvious misses from memory before touching the database
+        if (index.getCaregivers(date.toLocalDate()).isEmpty()) {
+            return new Reservation(Status.NO_CAREGIVER, null, null);
+        }
+        Integer doses = inventory.getDoses(vaccine);
+        if (doses != null && doses <= 0) {
+            // another process or a top-up straight in the table may have added doses this counter has not seen
+            inventory.refresh(vaccine);
+            doses = inventory.getDoses(vaccine);
+            if (doses != null && doses <= 0) {
+                return new Reservation(Status.NO_DOSES, null, null);
+            }
+        }
+        // doses added in this process must reach the table before the conditional decrement can see them
+        if (inventory.hasPending(vaccine)) {
+            inventory.flush();
+        }
+
+        for (int attempt = 1; ; attempt++) {
+            Reservation reservation;
+            // taken before the transaction starts, an unused ID only leaves a gap
+            String appointmentId = idGenerator.nextId();
+            LocalDate day = date.toLocalDate();
+            try {
+                // a candidate someone else took already is dropped from the index and the next one tried
+                reservation = storage.reserve(appointmentId, date, vaccine, patient,
+                        allocator.order(index.getCaregivers(day), patient), caregiver -> index.remove(day, caregiver));
+            } catch (SQLException e) {
+                if (!isRetryable(e) || attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                backoff(attempt);
+                continue;
+            }
+
+            if (reservation.getStatus() == Status.RESERVED) {
+                index.remove(day, reservation.getCaregiver());
+                inventory.applyPersisted(vaccine, -1);
+                allocator.booked(reservation.getCaregiver());
+            } else if (reservation.getStatus() == Status.NO_DOSES || reservation.getStatus() == Status.NO_VACCINE) {
+                // the counter said there were doses but the table disagreed
+                inventory.refresh(vaccine);
+            }
+            return reservation;
+        }
+    }
+
+    // Cancels the appointment if it belongs to the given patient or caregiver. The appointment, the caregiver's
+    // day and the dose all come back in one transaction; empty if there was nothing to cancel.
+    public List<Storage.Appointment> cancel(String appointmentId, Storage.Account owner, String username)
+            throws SQLException {
+        return release(withRetry(() -> storage.cancelAppointment(appointmentId, owner, username)));
+    }
+
+    // every appointment of the caregiver on the date
+    public List<Storage.Appointment> cancelDay(String caregiver, Date date) throws SQLException {
+        return release(withRetry(() -> storage.cancelCaregiverDay(caregiver, date)));
+    }
+
+    // every appointment for the vaccine on the date, e.g. when a lot is recalled
+    public List<Storage.Appointment> cancelVaccine(String vaccine, Date date) throws SQLException {
+        return release(withRetry(() -> storage.cancelVaccineDay(vaccine, date)));
+    }
+
+    // the storage has already put the days and doses back, the in-memory copies follow
+    private List<Storage.Appointment> release(List<Storage.Appointment> canceled) {
+        for (Storage.Appointment appointment : canceled) {
+            Waitlist.getInstance().canceled(appointment);
+            index.add(appointment.getTime().toLocalDate(), appointment.getCaregiver());
+            inventory.applyPersisted(appointment.getVaccine(), 1);
+            allocator.released(appointment.getCaregiver());
+        }
+        return canceled;
+    }
+
+    private interface StorageCall<T> {
+        T call() throws SQLException;
+    }
+
+    private static <T> T withRetry(StorageCall<T> call) throws SQLException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return call.call();
+            } catch (SQLException e) {
+                if (!SqlErrors.isSerializationFailure(e) || attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                backoff(attempt);
+            }
+        }
+    }
+
+    // a duplicate key can only come from an AppointmentID written by the old random scheme, a new ID fixes it
+    private static boolean isRetryable(SQLException e) {
+        return SqlErrors.isSerializationFailure(e) || SqlErrors.isDuplicateKey(e);
+    }
+
+    static void backoff(int attempt) {
+        long bound = BASE_BACKOFF_MS << Math.min(attempt, 6);
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(BASE_BACKOFF_MS, bound + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
\ No newline at end of file
@@ -1,195 +1,351 @@
 package scheduler;
 
+import scheduler.db.AvailabilityIndex;
 import scheduler.db.ConnectionManager;
+import scheduler.db.DoseImporter;
+import scheduler.db.JdbcStorage;
+import scheduler.db.PlanChecker;
+import scheduler.db.ReservationEngine;
+import scheduler.db.SqlErrors;
+import scheduler.db.Storage;
+import scheduler.db.TableExporter;
+import scheduler.db.UsernameRegistry;
+import scheduler.db.VaccineInventory;
+import scheduler.db.Waitlist;
 import scheduler.model.Caregiver;
 import scheduler.model.Patient;
 import scheduler.model.Vaccine;
+import scheduler.util.Metrics;
+import scheduler.util.PasswordHasher;
 import scheduler.util.Util;
 
 import java.awt.*;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.*;
-import java.util.Random;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.SortedMap;
 
 public class Scheduler {
 
-    // objects to keep track of the currently logged-in user
-    // Note: it is always true that at most one of currentCaregiver and currentPatient is not null
-    //       since only one user can be logged-in at a time
-    private static Caregiver currentCaregiver = null;
-    private static Patient currentPatient = null;
+    // show_appointments page size when no limit is given, and the largest limit accepted
+    private static final int DEFAULT_PAGE_SIZE = 50;
+    private static final int MAX_PAGE_SIZE = 1_000;
+    private static final Set<String> COMMANDS = Set.of("create_patient", "create_caregiver", "login_patient",
+            "login_caregiver", "search_caregiver_schedule", "reserve", "upload_availability", "cancel", "cancel_day",
+            "cancel_all", "add_doses", "import_doses", "export", "show_appointments", "stats", "logout", "quit");
 
     public static void main(String[] args) {
-        // printing greetings text
-        System.out.println();
-        System.out.println("Welcome to the COVID-19 Vaccine Reservation Scheduling Application!");
-        System.out.println("*** Please enter one of the following commands ***");
-        System.out.println("> create_patient <username> <password>");  //TODO: implement create_patient (Part 1)
-        System.out.println("> create_caregiver <username> <password>");
-        System.out.println("> login_patient <username> <password>");  // TODO: implement login_patient (Part 1)
-        System.out.println("> login_caregiver <username> <password>");
-        System.out.println("> search_caregiver_schedule <date>");  // TODO: implement search_caregiver_schedule (Part 2)
-        System.out.println("> reserve <date> <vaccine>");  // TODO: implement reserve (Part 2)
-        System.out.println("> upload_availability <date>");
-        System.out.println("> cancel <appointment_id>");  // TODO: implement cancel (extra credit)
-        System.out.println("> add_doses <vaccine> <number>");
-        System.out.println("> show_appointments");  // TODO: implement show_appointments (Part 2)
-        System.out.println("> logout");  // TODO: implement logout (Part 2)
-        System.out.println("> quit");
-        System.out.println();
+        // the schema is brought up to date (or the local journal replayed) before anything else touches the data
+        Storage storage = Storage.getDefault();
+        try {
+            storage.open();
+        } catch (IOException | SQLException e) {
+            System.out.println("Could not open the storage");
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        // scheduler --check-plans reports hot statements whose plans read a whole table or index
+        if (args.length == 1 && args[0].equals("--check-plans")) {
+            if (!(storage instanceof JdbcStorage)) {
+                System.out.println("Query plans can only be checked against the database server");
+                System.exit(1);
+            }
+            List<String> scans = List.of();
+            try {
+                scans = new PlanChecker().check();
+            } catch (SQLException e) {
+                System.out.println("Could not check the query plans");
+                e.printStackTrace();
+                System.exit(1);
+            }
+            for (String scan : scans) {
+                System.out.println(scan);
+            }
+            if (!scans.isEmpty()) {
+                System.out.println(scans.size() + " scans found");
+                System.exit(1);
+            }
+            System.out.println("Every hot statement uses an index seek");
+            return;
+        }
+
+        // scheduler --server <port> serves many clients over TCP, otherwise one user on this terminal
+        if (args.length == 2 && args[0].equals("--server")) {
+            try {
+                new SchedulerServer(Integer.parseInt(args[1])).run();
+            } catch (NumberFormatException e) {
+                System.out.println("Please enter a valid port number!");
+            } catch (IOException e) {
+                System.out.println("Could not start the server");
+                e.printStackTrace();
+            } finally {
+                VaccineInventory.getInstance().shutdown();
+                storage.close();
+            }
+            return;
+        }
+
+        // scheduler --script <file|-> [--stop-on-error] runs a command file (or stdin) without prompts
+        if (args.length >= 2 && args[0].equals("--script")) {
+            boolean stopOnError = args.length == 3 && args[2].equals("--stop-on-error");
+            long failures = 0;
+            try (BufferedReader script = args[1].equals("-")
+                    ? new BufferedReader(new InputStreamReader(System.in))
+                    : Files.newBufferedReader(Paths.get(args[1]))) {
+                failures = new ScriptRunner(stopOnError).run(script);
+            } catch (IOException e) {
+                System.out.println("Could not read " + args[1]);
+                failures = 1;
+            } finally {
+                VaccineInventory.getInstance().shutdown();
+                storage.close();
+            }
+            if (failures > 0) {
+                System.exit(1);
+            }
+            return;
+        }
+
+        // objects to keep track of the currently logged-in user live in the session
+        Session session = new Session(new PrintWriter(System.out, true));
+        printGreeting(session);
 
         // read input from user
         BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
         while (true) {
-            System.out.print("> ");
+            session.print("> ");
+            session.flush();
             String response = "";
             try {
                 response = r.readLine();
             } catch (IOException e) {
-                System.out.println("Please try again!");
-            }
-            // split the user input by spaces
-            String[] tokens = response.split(" ");
-            // check if input exists
-            if (tokens.length == 0) {
-                System.out.println("Please try again!");
-                continue;
-            }
-            // determine which operation to perform
-            String operation = tokens[0];
-            if (operation.equals("create_patient")) {
-                createPatient(tokens);
-            } else if (operation.equals("create_caregiver")) {
-                createCaregiver(tokens);
-            } else if (operation.equals("login_patient")) {
-                loginPatient(tokens);
-            } else if (operation.equals("login_caregiver")) {
-                loginCaregiver(tokens);
-            } else if (operation.equals("search_caregiver_schedule")) {
-                searchCaregiverSchedule(tokens);
-            } else if (operation.equals("reserve")) {
-                reserve(tokens);
-            } else if (operation.equals("upload_availability")) {
-                uploadAvailability(tokens);
-            } else if (operation.equals("cancel")) {
-                cancel(tokens);
-            } else if (operation.equals("add_doses")) {
-                addDoses(tokens);
-            } else if (operation.equals("show_appointments")) {
-                showAppointments(tokens);
-            } else if (operation.equals("logout")) {
-                logout(tokens);
-            } else if (operation.equals("quit")) {
-                System.out.println("Bye!");
+                session.error("Please try again!");
+            }
+            if (response == null) {
+                // end of input behaves like quit
+                response = "quit";
+            }
+            boolean keepGoing = execute(session, response);
+            session.flush();
+            if (!keepGoing) {
+                VaccineInventory.getInstance().shutdown();
+                storage.close();
                 return;
-            } else {
-                System.out.println("Invalid operation name!");
             }
         }
     }
 
-    private static void createPatient(String[] tokens) {
+    public static void printGreeting(Session session) {
+        // printing greetings text
+        session.println();
+        session.println("Welcome to the COVID-19 Vaccine Reservation Scheduling Application!");
+        session.println("*** Please enter one of the following commands ***");
+        session.println("> create_patient <username> <password>");
+        session.println("> create_caregiver <username> <password>");
+        session.println("> login_patient <username> <password>");
+        session.println("> login_caregiver <username> <password>");
+        session.println("> search_caregiver_schedule <date> | <from> <to>");
+        session.println("> reserve <date> <vaccine>");
+        session.println("> upload_availability <date>");
+        session.println("> upload_availability <from> <to> [weekdays]");
+        session.println("> cancel <appointment_id>");
+        session.println("> cancel_day <date>");
+        session.println("> cancel_all <vaccine> <date>");
+        session.println("> add_doses <vaccine> <number>");
+        session.println("> import_doses <file>");
+        session.println("> export <appointments|availabilities> <file> [--format csv|jsonl] [--from <date> --to <date>] [--gzip]");
+        session.println("> show_appointments [after <appointment_id>] [limit <n>]");
+        session.println("> stats [reset]");
+        session.println("> logout");
+        session.println("> quit");
+        session.println();
+    }
+
+    // Runs one command line for the session and records it in Metrics. Returns false once the user quits.
+    public static boolean execute(Session session, String response) {
+        String operation = response.split(" ")[0];
+        Metrics metrics = Metrics.getInstance();
+        // anything that is not a command is counted under one name, so typos cannot grow the table
+        Metrics.Command command = metrics.begin(COMMANDS.contains(operation) ? operation : "invalid");
+        long failures = session.getFailureCount();
+        long start = System.nanoTime();
+        try {
+            return dispatch(session, response);
+        } finally {
+            metrics.end(command, System.nanoTime() - start, session.getFailureCount() > failures);
+        }
+    }
+
+    private static boolean dispatch(Session session, String response) {
+        // split the user input by spaces
+        String[] tokens = response.split(" ");
+        // check if input exists
+        if (tokens.length == 0) {
+            session.error("Please try again!");
+            return true;
+        }
+        // determine which operation to perform
+        String operation = tokens[0];
+        if (operation.equals("create_patient")) {
+            createPatient(session, tokens);
+        } else if (operation.equals("create_caregiver")) {
+            createCaregiver(session, tokens);
+        } else if (operation.equals("login_patient")) {
+            loginPatient(session, tokens);
+        } else if (operation.equals("login_caregiver")) {
+            loginCaregiver(session, tokens);
+        } else if (operation.equals("search_caregiver_schedule")) {
+            searchCaregiverSchedule(session, tokens);
+        } else if (operation.equals("reserve")) {
+            reserve(session, tokens);
+        } else if (operation.equals("upload_availability")) {
+            uploadAvailability(session, tokens);
+        } else if (operation.equals("cancel")) {
+            cancel(session, tokens);
+        } else if (operation.equals("cancel_day")) {
+            cancelDay(session, tokens);
+        } else if (operation.equals("cancel_all")) {
+            cancelAll(session, tokens);
+        } else if (operation.equals("add_doses")) {
+            addDoses(session, tokens);
+        } else if (operation.equals("import_doses")) {
+            importDoses(session, tokens);
+        } else if (operation.equals("export")) {
+            export(session, tokens);
+        } else if (operation.equals("show_appointments")) {
+            showAppointments(session, tokens);
+        } else if (operation.equals("stats")) {
+            stats(session, tokens);
+        } else if (operation.equals("logout")) {
+            logout(session, tokens);
+        } else if (operation.equals("quit")) {
+            session.println("Bye!");
+            return false;
+        } else {
+            session.error("Invalid operation name!");
+        }
+        return true;
+    }
+
+    private static void createPatient(Session session, String[] tokens) {
         if (tokens.length != 3) {
-            System.out.println("Failed to create user.");
+            session.error("Failed to create user.");
             return;
         }
 
         String username = tokens[1];
         String password = tokens[2];
         if (usernameExistsPatient(username)) {
-            System.out.println("Username taken, try again!");
+            session.error("Username taken, try again!");
             return;
         }
 
+        PasswordHasher hasher = PasswordHasher.getInstance();
         byte[] salt = Util.generateSalt();
-        byte[] hash = Util.generateHash(password, salt);
+        byte[] hash = hasher.hash(password, salt);
         try {
-            currentPatient = new Patient.PatientBuilder(username, salt, hash).build();
-            currentPatient.saveToDB();
-            System.out.println("Created user " + username);
+            Patient patient = new Patient.PatientBuilder(username, salt, hash, hasher.getIterations()).build();
+            // the PRIMARY KEY is the final check for names the filter could not rule out
+            patient.saveToDB();
+            session.setPatient(patient);
+            session.println("Created user " + username);
         } catch (SQLException e) {
-            System.out.println("Failed to create user.");
+            if (SqlErrors.isDuplicateKey(e)) {
+                UsernameRegistry.patients().add(username);
+                session.error("Username taken, try again!");
+                return;
+            }
+            session.error("Failed to create user.");
             e.printStackTrace();
         }
     }
 
+    // Only asks the database when the username filter cannot rule the name out. A failed check is not
+    // treated as "taken", the insert's PRIMARY KEY violation will catch a real duplicate.
     private static boolean usernameExistsPatient(String username) {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-        String selectUsername = "SELECT * FROM Patients WHERE Username = ?";
         try {
-            PreparedStatement statement = con.prepareStatement(selectUsername);
-            statement.setString(1, username);
-            ResultSet resultSet = statement.executeQuery();
-            // returns false if the cursor is not before the first record or if there are no rows in the ResultSet.
-            return resultSet.isBeforeFirst();
+            if (!UsernameRegistry.patients().mightExist(username)) {
+                return false;
+            }
+            return Storage.getDefault().accountExists(Storage.Account.PATIENT, username);
         } catch (SQLException e) {
-            System.out.println("Error occurred when checking username");
             e.printStackTrace();
-        } finally {
-            cm.closeConnection();
         }
-        return true;
+        return false;
     }
 
-    private static void createCaregiver(String[] tokens) {
+    private static void createCaregiver(Session session, String[] tokens) {
         // create_caregiver <username> <password>
         // check 1: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Failed to create user.");
+            session.error("Failed to create user.");
             return;
         }
         String username = tokens[1];
         String password = tokens[2];
         // check 2: check if the username has been taken already
         if (usernameExistsCaregiver(username)) {
-            System.out.println("Username taken, try again!");
+            session.error("Username taken, try again!");
             return;
         }
+        PasswordHasher hasher = PasswordHasher.getInstance();
         byte[] salt = Util.generateSalt();
-        byte[] hash = Util.generateHash(password, salt);
+        byte[] hash = hasher.hash(password, salt);
         // create the caregiver
         try {
-            currentCaregiver = new Caregiver.CaregiverBuilder(username, salt, hash).build();
-            // save to caregiver information to our database
-            currentCaregiver.saveToDB();
-            System.out.println("Created user " + username);
+            Caregiver caregiver = new Caregiver.CaregiverBuilder(username, salt, hash, hasher.getIterations()).build();
+            // save to caregiver information to our database, the PRIMARY KEY is the final duplicate check
+            caregiver.saveToDB();
+            session.setCaregiver(caregiver);
+            session.println("Created user " + username);
         } catch (SQLException e) {
-            System.out.println("Failed to create user.");
+            if (SqlErrors.isDuplicateKey(e)) {
+                UsernameRegistry.caregivers().add(username);
+                session.error("Username taken, try again!");
+                return;
+            }
+            session.error("Failed to create user.");
             e.printStackTrace();
         }
     }
 
     private static boolean usernameExistsCaregiver(String username) {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String selectUsername = "SELECT * FROM Caregivers WHERE Username = ?";
         try {
-            PreparedStatement statement = con.prepareStatement(selectUsername);
-            statement.setString(1, username);
-            ResultSet resultSet = statement.executeQuery();
-            // returns false if the cursor is not before the first record or if there are no rows in the ResultSet.
-            return resultSet.isBeforeFirst();
+            // check 1: a definite "no" from the username filter skips the database
+            if (!UsernameRegistry.caregivers().mightExist(username)) {
+                return false;
+            }
+            return Storage.getDefault().accountExists(Storage.Account.CAREGIVER, username);
         } catch (SQLException e) {
-            System.out.println("Error occurred when checking username");
             e.printStackTrace();
-        } finally {
-            cm.closeConnection();
         }
-        return true;
+        return false;
     }
 
-    private static void loginPatient(String[] tokens) {
-        if (currentCaregiver != null || currentPatient != null) {
-            System.out.println("User already logged in.");
+    private static void loginPatient(Session session, String[] tokens) {
+        if (session.isLoggedIn()) {
+            session.error("User already logged in.");
             return;
         }
 
         if (tokens.length != 3) {
-            System.out.println("Login failed.");
+            session.error("Login failed.");
             return;
         }
 
@@ -199,28 +355,28 @@ public class Scheduler {
         try {
             patient = new Patient.PatientGetter(username, password).get();
         } catch (SQLException e) {
-            System.out.println("Login failed.");
+            session.error("Login failed.");
             e.printStackTrace();
         }
 
         if (patient == null) {
-            System.out.println("Login failed.");
+            session.error("Login failed.");
         } else {
-            System.out.println("Logged in as: " + username);
-            currentPatient = patient;
+            session.println("Logged in as: " + username);
+            session.setPatient(patient);
         }
     }
 
-    private static void loginCaregiver(String[] tokens) {
+    private static void loginCaregiver(Session session, String[] tokens) {
         // login_caregiver <username> <password>
         // check 1: if someone's already logged-in, they need to log out first
-        if (currentCaregiver != null || currentPatient != null) {
-            System.out.println("User already logged in.");
+        if (session.isLoggedIn()) {
+            session.error("User already logged in.");
             return;
         }
         // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Login failed.");
+            session.error("Login failed.");
             return;
         }
         String username = tokens[1];
@@ -229,208 +385,369 @@ public class Scheduler {
         try {
             caregiver = new Caregiver.CaregiverGetter(username, password).get();
         } catch (SQLException e) {
-            System.out.println("Login failed.");
+            session.error("Login failed.");
             e.printStackTrace();
         }
         // check if the login was successful
         if (caregiver == null) {
-            System.out.println("Login failed.");
+            session.error("Login failed.");
         } else {
-            System.out.println("Logged in as: " + username);
-            currentCaregiver = caregiver;
+            session.println("Logged in as: " + username);
+            session.setCaregiver(caregiver);
         }
     }
 
-    private static void searchCaregiverSchedule(String[] tokens) {
-        if (currentCaregiver == null && currentPatient == null) {
-            System.out.println("Please login first!");
+    private static void searchCaregiverSchedule(Session session, String[] tokens) {
+        if (!session.isLoggedIn()) {
+            session.error("Please login first!");
             return;
         }
         // checks if user entered the correct number of inputs
-        if (tokens.length != 2) {
-            System.out.println("Please try again!");
+        if (tokens.length != 2 && tokens.length != 3) {
+            session.error("Please try again!");
             return;
         }
         // checks if user entered date format correctly
         char[] chars = tokens[1].toCharArray();
         if (tokens[1].length() != 10 || chars[4] != '-' && chars[7] != '-') {
-            System.out.println("Please enter a valid date in format YYYY-MM-DD!");
+            session.error("Please enter a valid date in format YYYY-MM-DD!");
+            return;
+        }
+        if (tokens.length == 3) {
+            searchScheduleRange(session, tokens);
             return;
         }
-        // executes query
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-        String getAvailabilities = "SELECT DISTINCT A.Username AS Username, " +
-                "V.Name AS Name, V.Doses AS Doses " +
-                "FROM Availabilities AS A, Vaccines AS V " +
-                "WHERE A.Time = ? " +
-                "ORDER BY A.Username ";
+        // caregivers and vaccine stock both come from memory, no database round trip
         try {
-            PreparedStatement statement = con.prepareStatement(getAvailabilities);
-            statement.setString(1, tokens[1]);
-            ResultSet rs = statement.executeQuery();
+            Date d = Date.valueOf(tokens[1]);
+            NavigableSet<String> caregivers = AvailabilityIndex.getInstance().getCaregivers(d.toLocalDate());
+            SortedMap<String, Integer> vaccines = VaccineInventory.getInstance().snapshot();
             // checks for available caregivers
-            if (!rs.isBeforeFirst()) {
-                System.out.println("No Caregiver is available!");
+            if (caregivers.isEmpty() || vaccines.isEmpty()) {
+                session.error("No Caregiver is available!");
                 return;
             }
-            while (rs.next()) {
-                System.out.println("[Caregiver: " + rs.getString("Username") +
-                        "] [Vaccine: " + rs.getString("Name") + "] [Doses: " +
-                        rs.getString("Doses") + "]");
+            // one line per caregiver and vaccine, same as the old cross join
+            StringBuilder out = new StringBuilder();
+            for (String caregiver : caregivers) {
+                for (Map.Entry<String, Integer> vaccine : vaccines.entrySet()) {
+                    out.append("[Caregiver: ").append(caregiver)
+                            .append("] [Vaccine: ").append(vaccine.getKey())
+                            .append("] [Doses: ").append(vaccine.getValue()).append("]\n");
+                }
             }
+            session.print(out);
+        } catch (IllegalArgumentException e) {
+            session.error("Please enter a valid date in format YYYY-MM-DD!");
         } catch (SQLException e) {
-            System.out.println("Please try again!");
+            session.error("Please try again!");
+            e.printStackTrace();
+        }
+    }
+
+    // search_caregiver_schedule <from> <to>: one line per day with free caregivers, read from the daily summary
+    private static void searchScheduleRange(Session session, String[] tokens) {
+        char[] chars = tokens[2].toCharArray();
+        if (tokens[2].length() != 10 || chars[4] != '-' && chars[7] != '-') {
+            session.error("Please enter a valid date in format YYYY-MM-DD!");
+            return;
+        }
+        try {
+            LocalDate from = Date.valueOf(tokens[1]).toLocalDate();
+            LocalDate to = Date.valueOf(tokens[2]).toLocalDate();
+            if (to.isBefore(from)) {
+                session.error("Please enter a valid date range!");
+                return;
+            }
+            NavigableMap<LocalDate, Integer> free = AvailabilityIndex.getInstance().getFreeCaregiverCounts(from, to);
+            SortedMap<String, Integer> vaccines = VaccineInventory.getInstance().snapshot();
+            if (free.isEmpty() || vaccines.isEmpty()) {
+                session.error("No Caregiver is available!");
+                return;
+            }
+            // the stock is not tied to a day, so it is the same on every line
+            StringBuilder doses = new StringBuilder();
+            for (Map.Entry<String, Integer> vaccine : vaccines.entrySet()) {
+                doses.append(" [Vaccine: ").append(vaccine.getKey())
+                        .append("] [Doses: ").append(vaccine.getValue()).append("]");
+            }
+            StringBuilder out = new StringBuilder();
+            for (Map.Entry<LocalDate, Integer> day : free.entrySet()) {
+                out.append("[Date: ").append(day.getKey())
+                        .append("] [Caregivers: ").append(day.getValue()).append("]")
+                        .append(doses).append('\n');
+            }
+            session.print(out);
+        } catch (IllegalArgumentException e) {
+            session.error("Please enter a valid date in format YYYY-MM-DD!");
+        } catch (SQLException e) {
+            session.error("Please try again!");
             e.printStackTrace();
-        } finally {
-            cm.closeConnection();
         }
     }
 
-    private static void reserve(String[] tokens) {
-        if (currentCaregiver == null && currentPatient == null) {
-            System.out.println("Please login first!");
+    private static void reserve(Session session, String[] tokens) {
+        if (!session.isLoggedIn()) {
+            session.error("Please login first!");
             return;
         }
-        if (currentCaregiver != null) {
-            System.out.println("Please login as a patient!");
+        if (session.getCaregiver() != null) {
+            session.error("Please login as a patient!");
             return;
         }
         // checks if user entered the correct number of inputs
         if (tokens.length != 3) {
-            System.out.println("Please try again!");
+            session.error("Please try again!");
             return;
         }
         // checks if user entered date format correctly
         char[] chars = tokens[1].toCharArray();
         if (tokens[1].length() != 10 || chars[4] != '-' && chars[7] != '-') {
-            System.out.println("Please enter a valid date in format YYYY-MM-DD!");
+            session.error("Please enter a valid date in format YYYY-MM-DD!");
             return;
         }
 
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
         try {
-            // selects top caregiver available
-            String caregiver = "";
-            String checkTime = "SELECT TOP 1 Username " +
-                    "FROM Availabilities " +
-                    "WHERE Time = ? " +
-                    "ORDER BY Username ASC ";
-            PreparedStatement statement1 = con.prepareStatement(checkTime);
-            statement1.setString(1, tokens[1]);
-            ResultSet rs1 = statement1.executeQuery();
-            if (!rs1.next()) {
-                System.out.println("No Caregiver is available!");
-                return;
-            } else {
-                caregiver = rs1.getString("Username");
-            }
-
-            // selects vaccine doses
-            String checkDoses = "SELECT Doses " +
-                    "FROM Vaccines " +
-                    "WHERE Name = ? ";
-            PreparedStatement statement2 = con.prepareStatement(checkDoses);
-            statement2.setString(1, tokens[2]);
-            ResultSet rs2 = statement2.executeQuery();
-            // checks if inputted vaccine is available
-            if (!rs2.next()) {
-                System.out.println("Sorry! We do not offer that vaccine!");
+            Date d = Date.valueOf(tokens[1]);
+            ReservationEngine.Reservation reservation =
+                    new ReservationEngine().reserve(d, tokens[2], session.getPatient().getUsername());
+            switch (reservation.getStatus()) {
+                case NO_CAREGIVER:
+                    session.error("No Caregiver is available!");
+                    waitlisted(session, d, tokens[2], reservation.getWaitlistPosition());
+                    break;
+                case NO_VACCINE:
+                    session.error("Sorry! We do not offer that vaccine!");
+                    break;
+                case NO_DOSES:
+                    session.error("Not enough available doses!");
+                    break;
+                default:
+                    session.println("[Appointment ID: " + reservation.getAppointmentId() +
+                            "] [Caregiver username: " + reservation.getCaregiver() + "]");
+            }
+        } catch (IllegalArgumentException e) {
+            session.error("Please enter a valid date in format YYYY-MM-DD!");
+        } catch (SQLException e) {
+            session.error("Please try again!");
+            e.printStackTrace();
+        }
+    }
+
+    // the engine only puts requests that can still be booked on the waitlist
+    private static void waitlisted(Session session, Date d, String vaccine, int position) throws SQLException {
+        if (d.toLocalDate().isBefore(LocalDate.now())) {
+            return;
+        }
+        Integer doses = VaccineInventory.getInstance().getDoses(vaccine);
+        if (doses == null || position == 0) {
+            session.error("Sorry! We do not offer that vaccine!");
+            return;
+        }
+        session.println("You are number " + position + " on the waitlist for " + d +
+                ", you will be booked when a caregiver becomes available");
+        if (doses <= 0) {
+            session.println("There are no doses of " + vaccine + " right now, you keep your place until more arrive");
+        }
+    }
+
+    private static void uploadAvailability(Session session, String[] tokens) {
+        // upload_availability <date>
+        // upload_availability <from> <to> [weekdays]
+        // check 1: check if the current logged-in user is a caregiver
+        if (session.getCaregiver() == null) {
+            session.error("Please login as a caregiver first!");
+            return;
+        }
+        // check 2: a single date, or a date range with an optional list of weekdays
+        if (tokens.length < 2 || tokens.length > 4) {
+            session.error("Please try again!");
+            return;
+        }
+        if (tokens.length == 2) {
+            String date = tokens[1];
+            try {
+                Date d = Date.valueOf(date);
+                session.getCaregiver().uploadAvailability(d);
+                session.println("Availability uploaded!");
+                matchWaitlist(session, List.of(d.toLocalDate()));
+            } catch (IllegalArgumentException e) {
+                session.error("Please enter a valid date!");
+            } catch (SQLException e) {
+                session.error("Error occurred when uploading availability");
+                e.printStackTrace();
+            }
+            return;
+        }
+
+        Set<DayOfWeek> weekdays = EnumSet.allOf(DayOfWeek.class);
+        if (tokens.length == 4) {
+            try {
+                weekdays = parseWeekdays(tokens[3]);
+            } catch (IllegalArgumentException e) {
+                session.error("Please enter weekdays like MON,WED,FRI!");
                 return;
             }
-            // checks for available doses
-            int numDoses = rs2.getInt("Doses");
-            if (numDoses == 0) {
-                System.out.println("Not enough available doses!");
+        }
+        List<Date> dates = new ArrayList<>();
+        try {
+            LocalDate from = Date.valueOf(tokens[1]).toLocalDate();
+            LocalDate to = Date.valueOf(tokens[2]).toLocalDate();
+            if (to.isBefore(from)) {
+                session.error("Please enter a valid date range!");
                 return;
             }
+            for (LocalDate day = from; !day.isAfter(to); day = day.plusDays(1)) {
+                if (weekdays.contains(day.getDayOfWeek())) {
+                    dates.add(Date.valueOf(day));
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            session.error("Please enter a valid date!");
+            return;
+        }
+
+        try {
+            long start = System.nanoTime();
+            int uploaded = session.getCaregiver().uploadAvailability(dates);
+            double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+            session.println("Availability uploaded! " + uploaded + " new, " + (dates.size() - uploaded) +
+                    " already present (" + String.format("%.0f", dates.size() / Math.max(seconds, 1e-9)) +
+                    " rows/sec)");
+        } catch (SQLException e) {
+            session.error("Error occurred when uploading availability");
+            e.printStackTrace();
+            return;
+        }
+        List<LocalDate> days = new ArrayList<>();
+        for (Date d : dates) {
+            days.add(d.toLocalDate());
+        }
+        matchWaitlist(session, days);
+    }
+
+    // books waiting patients once capacity frees up on the given dates
+    private static void matchWaitlist(Session session, Collection<LocalDate> days) {
+        try {
+            List<Storage.Appointment> booked = Waitlist.getInstance().match(days);
+            if (!booked.isEmpty()) {
+                session.println("Booked " + booked.size() + " patients from the waitlist");
+            }
+        } catch (SQLException e) {
+            session.error("Could not book patients from the waitlist");
+            e.printStackTrace();
+        }
+    }
+
+    // parses weekdays like "MON,WED,FRI" (full names work too)
+    private static Set<DayOfWeek> parseWeekdays(String list) {
+        Set<DayOfWeek> weekdays = EnumSet.noneOf(DayOfWeek.class);
+        for (String name : list.split(",")) {
+            String prefix = name.trim().toUpperCase();
+            DayOfWeek match = null;
+            for (DayOfWeek day : DayOfWeek.values()) {
+                if (prefix.length() >= 3 && day.name().startsWith(prefix)) {
+                    match = day;
+                }
+            }
+            if (match == null) {
+                throw new IllegalArgumentException("Unknown weekday: " + name);
+            }
+            weekdays.add(match);
+        }
+        return weekdays;
+    }
 
-            // deletes availability from caregiver schedule
-            String deleteTime = "DELETE FROM Availabilities " +
-                    "WHERE Time = ? AND Username = ? ";
-            PreparedStatement statement3 = con.prepareStatement(deleteTime);
-            statement3.setString(1, tokens[1]);
-            statement3.setString(2, caregiver);
-            statement3.executeUpdate();
-
-            // decrements vaccine count
-            String decrementVaccine = "UPDATE Vaccines " +
-                    "SET Doses = Doses - 1 " +
-                    "WHERE Name = ? ";
-            PreparedStatement statement4 = con.prepareStatement(decrementVaccine);
-            statement4.setString(1, tokens[2]);
-            statement4.executeUpdate();
-
-            // creates randomly generated ID
-            String appointmentID = "";
-            Random rand = new Random();
-            int num = rand.nextInt(1000);
-            appointmentID += Integer.toString(num);
-            for (int i = 0; i < 3; i++) {
-                appointmentID += (char)('!' + rand.nextInt(93));
-            }
-
-            // creates appointment and prints ID and caregiver username
-            String createAppointment = "INSERT INTO Appointments " +
-                    "(AppointmentID, Time, Vaccine, Patient, Caregiver) " +
-                    "VALUES (?, ?, ?, ?, ?) ";
-            PreparedStatement statement5 = con.prepareStatement(createAppointment);
-            statement5.setString(1, appointmentID);
-            statement5.setString(2, tokens[1]);
-            statement5.setString(3, tokens[2]);
-            statement5.setString(4, currentPatient.getUsername());
-            statement5.setString(5, caregiver);
-            statement5.executeUpdate();
-            System.out.println("[Appointment ID: " + appointmentID +
-                    "] [Caregiver username: " + caregiver + "]");
+    private static void cancel(Session session, String[] tokens) {
+        // cancel <appointment_id>: patients and caregivers can cancel their own appointments
+        if (!session.isLoggedIn()) {
+            session.error("Please login first!");
+            return;
+        }
+        if (tokens.length != 2) {
+            session.error("Please try again!");
+            return;
+        }
+        Storage.Account owner = session.getCaregiver() != null ? Storage.Account.CAREGIVER : Storage.Account.PATIENT;
+        String username = session.getCaregiver() != null
+                ? session.getCaregiver().getUsername() : session.getPatient().getUsername();
+        try {
+            List<Storage.Appointment> canceled = new ReservationEngine().cancel(tokens[1], owner, username);
+            if (canceled.isEmpty()) {
+                session.error("Could not find appointment " + tokens[1] + "!");
+                return;
+            }
+            Storage.Appointment appointment = canceled.get(0);
+            session.println("Canceled appointment " + appointment.getAppointmentId() +
+                    " [Date: " + appointment.getTime() + "] [Vaccine: " + appointment.getVaccine() + "]");
+            matchWaitlist(session, List.of(appointment.getTime().toLocalDate()));
         } catch (SQLException e) {
-            System.out.println("Please try again!");
+            session.error("Please try again!");
             e.printStackTrace();
-        } finally {
-            cm.closeConnection();
         }
     }
 
-    private static void uploadAvailability(String[] tokens) {
-        // upload_availability <date>
-        // check 1: check if the current logged-in user is a caregiver
-        if (currentCaregiver == null) {
-            System.out.println("Please login as a caregiver first!");
+    private static void cancelDay(Session session, String[] tokens) {
+        // cancel_day <date>: a caregiver cancels all of their appointments on the date
+        if (session.getCaregiver() == null) {
+            session.error("Please login as a caregiver first!");
             return;
         }
-        // check 2: the length for tokens need to be exactly 2 to include all information (with the operation name)
         if (tokens.length != 2) {
-            System.out.println("Please try again!");
+            session.error("Please try again!");
             return;
         }
-        String date = tokens[1];
         try {
-            Date d = Date.valueOf(date);
-            currentCaregiver.uploadAvailability(d);
-            System.out.println("Availability uploaded!");
+            Date d = Date.valueOf(tokens[1]);
+            List<Storage.Appointment> canceled =
+                    new ReservationEngine().cancelDay(session.getCaregiver().getUsername(), d);
+            session.println("Canceled " + canceled.size() + " appointments on " + d);
+            if (!canceled.isEmpty()) {
+                matchWaitlist(session, List.of(d.toLocalDate()));
+            }
         } catch (IllegalArgumentException e) {
-            System.out.println("Please enter a valid date!");
+            session.error("Please enter a valid date!");
         } catch (SQLException e) {
-            System.out.println("Error occurred when uploading availability");
+            session.error("Please try again!");
             e.printStackTrace();
         }
     }
 
-    private static void cancel(String[] tokens) {
-        // TODO: Extra credit
+    private static void cancelAll(Session session, String[] tokens) {
+        // cancel_all <vaccine> <date>: a caregiver cancels every appointment for the vaccine on the date (recalls)
+        if (session.getCaregiver() == null) {
+            session.error("Please login as a caregiver first!");
+            return;
+        }
+        if (tokens.length != 3) {
+            session.error("Please try again!");
+            return;
+        }
+        try {
+            Date d = Date.valueOf(tokens[2]);
+            List<Storage.Appointment> canceled = new ReservationEngine().cancelVaccine(tokens[1], d);
+            session.println("Canceled " + canceled.size() + " " + tokens[1] + " appointments on " + d);
+            if (!canceled.isEmpty()) {
+                matchWaitlist(session, List.of(d.toLocalDate()));
+            }
+        } catch (IllegalArgumentException e) {
+            session.error("Please enter a valid date!");
+        } catch (SQLException e) {
+            session.error("Please try again!");
+            e.printStackTrace();
+        }
     }
 
-    private static void addDoses(String[] tokens) {
+    private static void addDoses(Session session, String[] tokens) {
         // add_doses <vaccine> <number>
         // check 1: check if the current logged-in user is a caregiver
-        if (currentCaregiver == null) {
-            System.out.println("Please login as a caregiver first!");
+        if (session.getCaregiver() == null) {
+            session.error("Please login as a caregiver first!");
             return;
         }
         // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Please try again!");
+            session.error("Please try again!");
             return;
         }
         String vaccineName = tokens[1];
@@ -439,7 +756,7 @@ public class Scheduler {
         try {
             vaccine = new Vaccine.VaccineGetter(vaccineName).get();
         } catch (SQLException e) {
-            System.out.println("Error occurred when adding doses");
+            session.error("Error occurred when adding doses");
             e.printStackTrace();
         }
         // check 3: if getter returns null, it means that we need to create the vaccine and insert it into the Vaccines
@@ -449,115 +766,220 @@ public class Scheduler {
                 vaccine = new Vaccine.VaccineBuilder(vaccineName, doses).build();
                 vaccine.saveToDB();
             } catch (SQLException e) {
-                System.out.println("Error occurred when adding doses");
+                session.error("Error occurred when adding doses");
                 e.printStackTrace();
             }
         } else {
             // if the vaccine is not null, meaning that the vaccine already exists in our table
             try {
                 vaccine.increaseAvailableDoses(doses);
+            } catch (ArithmeticException e) {
+                session.error("Dose count too large, nothing was added");
+                return;
             } catch (SQLException e) {
-                System.out.println("Error occurred when adding doses");
+                session.error("Error occurred when adding doses");
                 e.printStackTrace();
             }
         }
-        System.out.println("Doses updated!");
+        session.println("Doses updated!");
+        matchWaitlist(session, Waitlist.getInstance().getDates());
     }
 
-    private static void showAppointments(String[] tokens) {
-        if (currentCaregiver == null && currentPatient == null) {
-            System.out.println("Please login first!");
+    private static void importDoses(Session session, String[] tokens) {
+        // import_doses <file>
+        // check 1: check if the current logged-in user is a caregiver
+        if (session.getCaregiver() == null) {
+            session.error("Please login as a caregiver first!");
             return;
         }
-
-        // checks if user entered the correct number of inputs
-        if (tokens.length != 1) {
-            System.out.println("Please try again!");
+        // check 2: the length for tokens need to be exactly 2 to include all information (with the operation name)
+        if (tokens.length != 2) {
+            session.error("Please try again!");
             return;
         }
+        // check 3: server clients may only read files from the server's file directory
+        Path file = resolveFile(session, tokens[1]);
+        if (file == null) {
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            DoseImporter.ImportResult result = new DoseImporter().importFile(file);
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            session.println("Doses imported! " + result.getDoses() + " doses for " + result.getUpserts() +
+                    " vaccine rows from " + result.getLines() + " lines (" + result.getRejected() +
+                    " rejected) in " + millis + " ms");
+            matchWaitlist(session, Waitlist.getInstance().getDates());
+        } catch (IOException e) {
+            session.error("Could not read " + tokens[1]);
+        } catch (ArithmeticException e) {
+            session.error("Dose count too large, nothing more was imported");
+        } catch (SQLException e) {
+            session.error("Error occurred when importing doses");
+            e.printStackTrace();
+        }
+    }
 
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-        // shows logged in caregiver their appointments
-        if (currentCaregiver != null) {
-            try {
-                String showCaregiver = "SELECT AppointmentID, Vaccine, " +
-                        "Time, Patient " +
-                        "FROM Appointments " +
-                        "WHERE Caregiver = ? " +
-                        "ORDER BY AppointmentID";
-                PreparedStatement statement = con.prepareStatement(showCaregiver);
-                statement.setString(1, currentCaregiver.getUsername());
-                ResultSet rs = statement.executeQuery();
-                ResultSetMetaData rsmd = rs.getMetaData();
-                int numColumns = rsmd.getColumnCount();
-                // checks if there are scheduled appointments
-                if (!rs.isBeforeFirst()) {
-                    System.out.println("No scheduled appointments!");
-                    return;
-                }
-                System.out.println("AppointmentID Vaccine Date Patient");
-                while (rs.next()) {
-                    for (int i = 1; i <= numColumns; i++) {
-                        System.out.print(rs.getString(i) + " ");
-                    }
-                    System.out.println();
+    private static Path resolveFile(Session session, String name) {
+        Path file = session.resolveFile(name);
+        if (file == null) {
+            session.error(session.canUseFiles() ? "Please name a file inside the server's file directory!"
+                    : "File commands are disabled on this server");
+        }
+        return file;
+    }
+
+    private static void export(Session session, String[] tokens) {
+        // export <appointments|availabilities> <file> [--format csv|jsonl] [--from <date> --to <date>] [--gzip]
+        // check 1: check if the current logged-in user is a caregiver
+        if (session.getCaregiver() == null) {
+            session.error("Please login as a caregiver first!");
+            return;
+        }
+        // check 2: the table and file are required, the options come in any order
+        if (tokens.length < 3) {
+            session.error("Please try again!");
+            return;
+        }
+        TableExporter.Table table;
+        TableExporter.Format format = TableExporter.Format.CSV;
+        Date from = null;
+        Date to = null;
+        boolean gzip = tokens[2].endsWith(".gz");
+        try {
+            table = TableExporter.Table.valueOf(tokens[1].toUpperCase());
+            for (int i = 3; i < tokens.length; i++) {
+                if (tokens[i].equals("--gzip")) {
+                    gzip = true;
+                } else if (i + 1 < tokens.length && tokens[i].equals("--format")) {
+                    format = TableExporter.Format.valueOf(tokens[++i].toUpperCase());
+                } else if (i + 1 < tokens.length && tokens[i].equals("--from")) {
+                    from = Date.valueOf(tokens[++i]);
+                } else if (i + 1 < tokens.length && tokens[i].equals("--to")) {
+                    to = Date.valueOf(tokens[++i]);
+                } else {
+                    throw new IllegalArgumentException();
                 }
-            } catch (SQLException e) {
-                System.out.println("Please try again!");
-                e.printStackTrace();
-            } finally {
-                cm.closeConnection();
             }
+        } catch (IllegalArgumentException e) {
+            session.error("Please try again!");
+            return;
+        }
+        // check 3: server clients may only write files in the server's file directory
+        Path file = resolveFile(session, tokens[2]);
+        if (file == null) {
             return;
         }
 
-        // shows logged in patient their appointments
-        if (currentPatient != null) {
-            try {
-                String showPatient = "SELECT AppointmentID, Vaccine, " +
-                        "Time, Caregiver " +
-                        "FROM Appointments " +
-                        "WHERE Patient = ? " +
-                        "ORDER BY AppointmentID";
-                PreparedStatement statement = con.prepareStatement(showPatient);
-                statement.setString(1, currentPatient.getUsername());
-                ResultSet rs = statement.executeQuery();
-                ResultSetMetaData rsmd = rs.getMetaData();
-                int numColumns = rsmd.getColumnCount();
-                // checks if there are scheduled appointments
-                if (!rs.isBeforeFirst()) {
-                    System.out.println("No scheduled appointments!");
-                    return;
-                }
-                System.out.println("AppointmentID Vaccine Date Caregiver");
-                while (rs.next()) {
-                    for (int i = 1; i <= numColumns; i++) {
-                        System.out.print(rs.getString(i) + " ");
+        try {
+            long start = System.nanoTime();
+            TableExporter.ExportResult result = new TableExporter().export(table, file, format, from, to, gzip);
+            double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+            session.println("Exported " + result.getRows() + " rows (" + result.getBytes() + " bytes) to " +
+                    tokens[2] + " in " + String.format("%.3f", seconds) + " s (" +
+                    String.format("%.0f", result.getRows() / Math.max(seconds, 1e-9)) + " rows/sec)");
+        } catch (IOException e) {
+            session.error("Could not write " + tokens[2]);
+        } catch (SQLException e) {
+            session.error("Error occurred when exporting");
+            e.printStackTrace();
+        }
+    }
+
+    private static void showAppointments(Session session, String[] tokens) {
+        // show_appointments [after <id>] [limit n]
+        if (!session.isLoggedIn()) {
+            session.error("Please login first!");
+            return;
+        }
+
+        // checks if user entered the correct inputs
+        String after = "";
+        int limit = DEFAULT_PAGE_SIZE;
+        try {
+            for (int i = 1; i < tokens.length; i += 2) {
+                if (i + 1 >= tokens.length) {
+                    throw new IllegalArgumentException();
+                } else if (tokens[i].equals("after")) {
+                    after = tokens[i + 1];
+                } else if (tokens[i].equals("limit")) {
+                    limit = Integer.parseInt(tokens[i + 1]);
+                    if (limit <= 0 || limit > MAX_PAGE_SIZE) {
+                        throw new IllegalArgumentException();
                     }
-                    System.out.println();
+                } else {
+                    throw new IllegalArgumentException();
                 }
-            } catch (SQLException e) {
-                System.out.println("Please try again!");
-                e.printStackTrace();
-            } finally {
-                cm.closeConnection();
             }
+        } catch (IllegalArgumentException e) {
+            session.error("Please try again!");
+            return;
+        }
+
+        // caregivers see their patients and patients see their caregivers, otherwise the query is the same
+        boolean caregiver = session.getCaregiver() != null;
+        String username = caregiver ? session.getCaregiver().getUsername() : session.getPatient().getUsername();
+        String other = caregiver ? "Patient" : "Caregiver";
+
+        try {
+            // one extra row tells us whether there is another page
+            List<Storage.Appointment> page = Storage.getDefault().getAppointments(
+                    caregiver ? Storage.Account.CAREGIVER : Storage.Account.PATIENT, username, after, limit + 1);
+            // checks if there are scheduled appointments
+            if (page.isEmpty()) {
+                session.println("No scheduled appointments!");
+                return;
+            }
+            StringBuilder out = new StringBuilder();
+            String lastId = null;
+            for (Storage.Appointment appointment : page.subList(0, Math.min(limit, page.size()))) {
+                lastId = appointment.getAppointmentId();
+                out.append(lastId).append(' ')
+                        .append(appointment.getVaccine()).append(' ')
+                        .append(appointment.getTime()).append(' ')
+                        .append(caregiver ? appointment.getPatient() : appointment.getCaregiver()).append(' ')
+                        .append('\n');
+            }
+            session.println("AppointmentID Vaccine Date " + other);
+            session.print(out);
+            if (page.size() > limit) {
+                session.println("More appointments: show_appointments after " + lastId + " limit " + limit);
+            }
+        } catch (SQLException e) {
+            session.error("Please try again!");
+            e.printStackTrace();
+        }
+    }
+
+    // stats [reset]: per-command latency and database work since startup (or the last reset)
+    private static void stats(Session session, String[] tokens) {
+        if (tokens.length > 2 || tokens.length == 2 && !tokens[1].equals("reset")) {
+            session.error("Please try again!");
+            return;
+        }
+        Metrics metrics = Metrics.getInstance();
+        if (tokens.length == 2) {
+            metrics.reset();
+            session.println("Statistics reset");
+            return;
+        }
+        session.print(metrics.report());
+        if (Storage.getDefault() instanceof JdbcStorage) {
+            session.println("Connection pool: " + ConnectionManager.getPoolStats());
         }
     }
 
-    private static void logout(String[] tokens) {
-        if (currentCaregiver == null && currentPatient == null) {
-            System.out.println("Please login first!");
+    private static void logout(Session session, String[] tokens) {
+        if (!session.isLoggedIn()) {
+            session.error("Please login first!");
             return;
         }
         // checks if user entered the correct number of inputs
         if (tokens.length != 1) {
-            System.out.println("Please try again!");
+            session.error("Please try again!");
             return;
         }
-        currentCaregiver = null;
-        currentPatient = null;
-        System.out.println("Successfully logged out!");
+        session.logout();
+        session.println("Successfully logged out!");
     }
 }
\ No newline at end of file
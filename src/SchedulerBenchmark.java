@@ -0,0 +1,293 @@
+package scheduler;
+
+import scheduler.db.EmbeddedStorage;
+import scheduler.db.ReservationEngine;
+import scheduler.db.Storage;
+import scheduler.db.VaccineInventory;
+import scheduler.model.Caregiver;
+import scheduler.model.Patient;
+import scheduler.model.Vaccine;
+import scheduler.util.PasswordHasher;
+import scheduler.util.Util;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Measures the hot paths (hashing, the model getters and savers, search and reserve) against the embedded
+// storage, so a change can be compared before and after on any machine. Each benchmark runs a few warmup
+// iterations and then measured ones of a fixed number of operations. Results are written as JSON in the
+// layout JMH uses, so the usual JMH comparison tools can diff two runs.
+//
+// StorageBackend=embedded EmbeddedDataDir=<scratch dir> java scheduler.SchedulerBenchmark [results.json] [filter]
+public class SchedulerBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURED_ITERATIONS = 5;
+    private static final int[] DATA_SIZES = {10, 100, 1_000};
+    private static final int[] THREAD_COUNTS = {1, 4, 16};
+    private static final String PASSWORD = "benchmark-password";
+
+    private interface Operation {
+        void run(int index) throws Exception;
+    }
+
+    private final String prefix = "b" + Long.toString(System.currentTimeMillis(), 36);
+    private final String filter;
+    private final List<String> results = new ArrayList<>();
+    private final Session session = new Session(new PrintWriter(Writer.nullWriter()));
+    private final byte[] salt = Util.generateSalt();
+    private final byte[] hash;
+    private final int iterations;
+    private final String vaccine;
+    // each benchmark seeds its own dates so that they never share availability
+    private LocalDate nextDate = LocalDate.of(2100, 1, 1);
+
+    private SchedulerBenchmark(String filter) {
+        this.filter = filter;
+        PasswordHasher hasher = PasswordHasher.getInstance();
+        this.iterations = hasher.getIterations();
+        this.hash = hasher.hash(PASSWORD, salt);
+        this.vaccine = prefix + "-vaccine";
+    }
+
+    public static void main(String[] args) throws Exception {
+        Storage storage = Storage.getDefault();
+        if (!(storage instanceof EmbeddedStorage)) {
+            System.out.println("Benchmarks only run against the embedded storage, set StorageBackend=embedded");
+            System.exit(1);
+        }
+        Path output = Paths.get(args.length > 0 ? args[0] : "benchmark-results.json");
+        storage.open();
+        try {
+            SchedulerBenchmark benchmark = new SchedulerBenchmark(args.length > 1 ? args[1] : "");
+            benchmark.runAll();
+            Files.write(output, ("[\n" + String.join(",\n", benchmark.results) + "\n]\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            System.out.println("Results written to " + output);
+        } finally {
+            VaccineInventory.getInstance().shutdown();
+            storage.close();
+        }
+    }
+
+    private void runAll() throws Exception {
+        new Vaccine.VaccineBuilder(vaccine, Integer.MAX_VALUE / 2).build().saveToDB();
+        Patient patient = new Patient.PatientBuilder(prefix + "-p", salt, hash, iterations).build();
+        patient.saveToDB();
+        Caregiver caregiver = new Caregiver.CaregiverBuilder(prefix + "-c", salt, hash, iterations).build();
+        caregiver.saveToDB();
+        session.setPatient(patient);
+
+        // search prints one line per caregiver and vaccine, so it runs before the savers grow the catalog
+        for (int size : DATA_SIZES) {
+            benchmarkSearch(size);
+            benchmarkReserve(size);
+        }
+        for (int threads : THREAD_COUNTS) {
+            benchmarkContention(threads);
+        }
+
+        // hashing
+        byte[] padded = Arrays.copyOf(hash, 32);
+        PasswordHasher hasher = PasswordHasher.getInstance();
+        measure("hash", params(), 1, 100, i -> Util.generateHash(PASSWORD, salt, iterations));
+        measure("verify", params(), 1, 100, i -> hasher.verify(PASSWORD, salt, hash, iterations));
+        measure("trim", params(), 1, 100_000, i -> Util.trim(padded));
+
+        // model savers and getters
+        measure("patient_save", params(), 1, 1_000, i ->
+                new Patient.PatientBuilder(prefix + "-ps" + i, salt, hash, iterations).build().saveToDB());
+        measure("caregiver_save", params(), 1, 1_000, i ->
+                new Caregiver.CaregiverBuilder(prefix + "-cs" + i, salt, hash, iterations).build().saveToDB());
+        measure("vaccine_save", params(), 1, 1_000, i ->
+                new Vaccine.VaccineBuilder(prefix + "-vs" + i, 10).build().saveToDB());
+        measure("patient_get", params(), 1, 100, i ->
+                new Patient.PatientGetter(patient.getUsername(), PASSWORD).get());
+        measure("caregiver_get", params(), 1, 100, i ->
+                new Caregiver.CaregiverGetter(caregiver.getUsername(), PASSWORD).get());
+        measure("vaccine_get", params(), 1, 100_000, i -> new Vaccine.VaccineGetter(vaccine).get());
+        LocalDate uploadStart = takeDates(totalOperations(1_000));
+        measure("upload_availability", params(), 1, 1_000, i ->
+                caregiver.uploadAvailability(Date.valueOf(uploadStart.plusDays(i))));
+    }
+
+    // search_caregiver_schedule through the command path, with size caregivers free on the date
+    private void benchmarkSearch(int size) throws Exception {
+        LocalDate day = takeDates(1);
+        seedCaregivers("s" + size, size, day, 1);
+        String command = "search_caregiver_schedule " + day;
+        measure("search", params("caregivers", size), 1, 1_000, i -> Scheduler.execute(session, command));
+    }
+
+    // every reservation goes to the next date, so the index always offers about size caregivers
+    private void benchmarkReserve(int size) throws Exception {
+        int operations = 1_000;
+        int days = (totalOperations(operations) + size - 1) / size;
+        LocalDate first = takeDates(days);
+        seedCaregivers("r" + size, size, first, days);
+        ReservationEngine engine = new ReservationEngine();
+        String patient = session.getPatient().getUsername();
+        measure("reserve", params("caregivers", size), 1, operations, i -> {
+            ReservationEngine.Reservation reservation =
+                    engine.reserve(Date.valueOf(first.plusDays(i % days)), vaccine, patient);
+            if (reservation.getStatus() != ReservationEngine.Status.RESERVED) {
+                throw new IllegalStateException("Reservation failed: " + reservation.getStatus());
+            }
+        });
+    }
+
+    // all threads book the same date at once
+    private void benchmarkContention(int threads) throws Exception {
+        int operations = 2_000;
+        LocalDate day = takeDates(1);
+        seedCaregivers("t" + threads, totalOperations(operations), day, 1);
+        ReservationEngine engine = new ReservationEngine();
+        String patient = session.getPatient().getUsername();
+        Date date = Date.valueOf(day);
+        measure("reserve_contended", params("threads", threads), threads, operations, i -> {
+            if (engine.reserve(date, vaccine, patient).getStatus() != ReservationEngine.Status.RESERVED) {
+                throw new IllegalStateException("Reservation failed");
+            }
+        });
+    }
+
+    private void seedCaregivers(String group, int count, LocalDate first, int days) throws SQLException {
+        List<Date> dates = new ArrayList<>();
+        for (int d = 0; d < days; d++) {
+            dates.add(Date.valueOf(first.plusDays(d)));
+        }
+        for (int c = 0; c < count; c++) {
+            Caregiver caregiver = new Caregiver.CaregiverBuilder(prefix + "-" + group + "-" + c, salt, hash,
+                    iterations).build();
+            caregiver.saveToDB();
+            caregiver.uploadAvailability(dates);
+        }
+    }
+
+    private LocalDate takeDates(int count) {
+        LocalDate first = nextDate;
+        nextDate = nextDate.plusDays(count);
+        return first;
+    }
+
+    private static int totalOperations(int operationsPerIteration) {
+        return (WARMUP_ITERATIONS + MEASURED_ITERATIONS) * operationsPerIteration;
+    }
+
+    // Runs the operation operationsPerIteration times per iteration, split over the threads. Operation indexes
+    // never repeat within a benchmark, so operations that create rows can use them for unique names.
+    private void measure(String name, Map<String, Object> params, int threads, int operationsPerIteration,
+            Operation operation) throws Exception {
+        if (!name.contains(filter)) {
+            return;
+        }
+        double[] scores = new double[MEASURED_ITERATIONS];
+        AtomicLong nextIndex = new AtomicLong();
+        for (int iteration = 0; iteration < WARMUP_ITERATIONS + MEASURED_ITERATIONS; iteration++) {
+            long elapsed = runIteration(threads, operationsPerIteration, operation, nextIndex);
+            if (iteration >= WARMUP_ITERATIONS) {
+                // average time per operation as seen by one thread, in microseconds
+                scores[iteration - WARMUP_ITERATIONS] = elapsed * threads / 1_000.0 / operationsPerIteration;
+            }
+        }
+
+        double mean = Arrays.stream(scores).average().orElse(0);
+        double variance = Arrays.stream(scores).map(s -> (s - mean) * (s - mean)).sum() / (scores.length - 1);
+        // 99.9% confidence half-width with Student's t for 4 degrees of freedom, as JMH reports for 5 samples
+        double error = 8.610 * Math.sqrt(variance / scores.length);
+        System.out.println(String.format("%-22s %-18s %12.3f +- %10.3f us/op", name, params, mean, error));
+
+        StringBuilder json = new StringBuilder();
+        json.append("  {\"benchmark\": \"scheduler.SchedulerBenchmark.").append(name).append('"')
+                .append(", \"mode\": \"avgt\", \"threads\": ").append(threads)
+                .append(", \"warmupIterations\": ").append(WARMUP_ITERATIONS)
+                .append(", \"measurementIterations\": ").append(MEASURED_ITERATIONS)
+                .append(", \"params\": {");
+        int p = 0;
+        for (Map.Entry<String, Object> param : params.entrySet()) {
+            json.append(p++ > 0 ? ", " : "").append('"').append(param.getKey()).append("\": \"")
+                    .append(param.getValue()).append('"');
+        }
+        json.append("}, \"primaryMetric\": {\"score\": ").append(mean)
+                .append(", \"scoreError\": ").append(error)
+                .append(", \"scoreUnit\": \"us/op\", \"rawData\": [[");
+        for (int i = 0; i < scores.length; i++) {
+            json.append(i > 0 ? ", " : "").append(scores[i]);
+        }
+        json.append("]]}}");
+        results.add(json.toString());
+    }
+
+    // returns the wall time of the iteration in nanoseconds
+    private static long runIteration(int threads, int operations, Operation operation, AtomicLong nextIndex)
+            throws Exception {
+        long first = nextIndex.getAndAdd(operations);
+        if (threads == 1) {
+            long start = System.nanoTime();
+            for (int i = 0; i < operations; i++) {
+                operation.run((int) (first + i));
+            }
+            return System.nanoTime() - start;
+        }
+
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        Exception[] failure = new Exception[1];
+        int perThread = operations / threads;
+        for (int t = 0; t < threads; t++) {
+            long from = first + (long) t * perThread;
+            int count = t == threads - 1 ? operations - perThread * (threads - 1) : perThread;
+            Thread worker = new Thread(() -> {
+                ready.countDown();
+                try {
+                    go.await();
+                    for (int i = 0; i < count; i++) {
+                        operation.run((int) (from + i));
+                    }
+                } catch (Exception e) {
+                    synchronized (failure) {
+                        failure[0] = e;
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }, "benchmark-" + t);
+            worker.start();
+        }
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        synchronized (failure) {
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+        }
+        return elapsed;
+    }
+
+    private static Map<String, Object> params(Object... keyValues) {
+        Map<String, Object> params = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < keyValues.length; i += 2) {
+            params.put((String) keyValues[i], keyValues[i + 1]);
+        }
+        return params;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,99 @@
+package scheduler;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Serves the scheduler's command protocol to many clients over a local TCP socket.
+// Every connection gets its own Session, so each client logs in and out independently.
+// Clients name files on the server's disk, so import_doses and export only take files inside ServerFileDir
+// and are turned off when it is not set.
+public class SchedulerServer {
+
+    private final int port;
+    private final Path fileDirectory;
+
+    public SchedulerServer(int port) {
+        this.port = port;
+        this.fileDirectory = getFileDirectory();
+    }
+
+    private static Path getFileDirectory() {
+        String setting = System.getenv("ServerFileDir");
+        if (setting == null || setting.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            Path directory = Paths.get(setting.trim());
+            if (Files.isDirectory(directory)) {
+                return directory.toRealPath();
+            }
+        } catch (IOException | RuntimeException e) {
+            // reported below like any other bad value
+        }
+        System.out.println("Ignoring invalid value for ServerFileDir: " + setting);
+        return null;
+    }
+
+    public void run() throws IOException {
+        ExecutorService clients = newClientExecutor();
+        try (ServerSocket server = new ServerSocket(port, 128, InetAddress.getLoopbackAddress())) {
+            System.out.println("Scheduler server listening on " + server.getLocalSocketAddress());
+            System.out.println(fileDirectory == null ? "File commands are disabled, set ServerFileDir to allow them"
+                    : "Clients may read and write files in " + fileDirectory);
+            while (true) {
+                Socket socket = server.accept();
+                clients.execute(() -> serve(socket));
+            }
+        } finally {
+            clients.shutdown();
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket client = socket;
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(
+                     new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8))) {
+            Session session = new Session(out, fileDirectory);
+            Scheduler.printGreeting(session);
+            while (true) {
+                session.print("> ");
+                session.flush();
+                String line = in.readLine();
+                if (line == null || !Scheduler.execute(session, line)) {
+                    session.flush();
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // the client went away, nothing left to clean up for its session
+        }
+    }
+
+    // One virtual thread per client where the runtime has them (Java 21+), a cached pool of platform threads
+    // otherwise. Looked up reflectively so the code still compiles and runs on older JDKs.
+    private static ExecutorService newClientExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "scheduler-client");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+}
\ No newline at end of file
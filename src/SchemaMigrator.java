@@ -0,0 +1,221 @@
+package scheduler.db;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.CodeSource;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Brings the database schema up to date at startup. Scripts are named V<version>__<description>.sql and live in
+// MigrationsDir, by default src/migrations or migrations under the working directory, or migrations next to the
+// compiled classes. Each script runs in its own transaction together with the row
+// that records it in SchemaVersion, so a failed script leaves nothing behind and is retried on the next start.
+public class SchemaMigrator {
+
+    private static final String[] DEFAULT_DIRECTORIES = {"src/migrations", "migrations"};
+    private static final Pattern SCRIPT_NAME = Pattern.compile("V(\\d+)__(.+)\\.sql");
+    // T-SQL batch separator, a line with only GO on it
+    private static final Pattern BATCH_SEPARATOR = Pattern.compile("(?im)^\\s*GO\\s*$");
+    private static final String LOCK_NAME = "SchedulerSchemaMigration";
+    private static final int LOCK_TIMEOUT_MS = 60_000;
+
+    private static final String CREATE_VERSION_TABLE = "IF OBJECT_ID('SchemaVersion', 'U') IS NULL " +
+            "CREATE TABLE SchemaVersion (" +
+            "Version int, " +
+            "Script varchar(255) NOT NULL, " +
+            "AppliedAt datetime2 NOT NULL DEFAULT SYSUTCDATETIME(), " +
+            "PRIMARY KEY (Version))";
+    private static final String GET_VERSION = "SELECT MAX(Version) FROM SchemaVersion";
+    private static final String HAS_TABLES = "SELECT OBJECT_ID('Caregivers', 'U')";
+    private static final String ADD_VERSION = "INSERT INTO SchemaVersion (Version, Script) VALUES (?, ?)";
+
+    private final Path directory;
+
+    public SchemaMigrator() {
+        String setting = System.getenv("MigrationsDir");
+        this.directory = setting == null || setting.isEmpty() ? defaultDirectory() : Paths.get(setting);
+    }
+
+    public SchemaMigrator(Path directory) {
+        this.directory = directory;
+    }
+
+    // returns the names of the scripts that were applied, empty when the schema was already current
+    public List<String> migrate() throws IOException, SQLException {
+        Map<Integer, Path> scripts = findScripts();
+        List<String> applied = new ArrayList<>();
+
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        if (con == null) {
+            throw new SQLException("No database connection available");
+        }
+
+        try {
+            // several servers may start at once, only one of them migrates and the others wait for it
+            lock(con);
+            try {
+                try (Statement statement = con.createStatement()) {
+                    statement.execute(CREATE_VERSION_TABLE);
+                }
+                int current = currentVersion(con);
+                if (current == 0 && scripts.containsKey(1) && hasTables(con)) {
+                    // the tables were created by hand from the first script before versions were tracked
+                    record(con, 1, scripts.get(1));
+                    current = 1;
+                }
+                for (Map.Entry<Integer, Path> script : scripts.entrySet()) {
+                    if (script.getKey() <= current) {
+                        continue;
+                    }
+                    apply(con, script.getKey(), script.getValue());
+                    applied.add(script.getValue().getFileName().toString());
+                }
+            } finally {
+                unlock(con);
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        return applied;
+    }
+
+    // the first default that exists, so the server can be started from the repository root, from src or elsewhere
+    private static Path defaultDirectory() {
+        for (String candidate : DEFAULT_DIRECTORIES) {
+            Path path = Paths.get(candidate);
+            if (Files.isDirectory(path)) {
+                return path;
+            }
+        }
+        CodeSource code = SchemaMigrator.class.getProtectionDomain().getCodeSource();
+        if (code != null && code.getLocation() != null) {
+            try {
+                Path classes = Paths.get(code.getLocation().toURI());
+                Path path = (Files.isDirectory(classes) ? classes : classes.getParent()).resolve("migrations");
+                if (Files.isDirectory(path)) {
+                    return path;
+                }
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                // not a local path, the error from findScripts names the first default
+            }
+        }
+        return Paths.get(DEFAULT_DIRECTORIES[0]);
+    }
+
+    private Map<Integer, Path> findScripts() throws IOException {
+        Map<Integer, Path> scripts = new TreeMap<>();
+        if (!Files.isDirectory(directory)) {
+            throw new IOException("Migrations directory not found: " + directory.toAbsolutePath());
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "V*__*.sql")) {
+            for (Path file : files) {
+                Matcher matcher = SCRIPT_NAME.matcher(file.getFileName().toString());
+                if (!matcher.matches()) {
+                    continue;
+                }
+                Path previous = scripts.put(Integer.parseInt(matcher.group(1)), file);
+                if (previous != null) {
+                    throw new IOException("Two migrations with version " + matcher.group(1) + ": "
+                            + previous.getFileName() + " and " + file.getFileName());
+                }
+            }
+        }
+        return scripts;
+    }
+
+    private void apply(Connection con, int version, Path script) throws IOException, SQLException {
+        String text = new String(Files.readAllBytes(script), StandardCharsets.UTF_8);
+        con.setAutoCommit(false);
+        SQLException failure = null;
+        try {
+            try (Statement statement = con.createStatement()) {
+                for (String batch : BATCH_SEPARATOR.split(text)) {
+                    if (!batch.isBlank()) {
+                        statement.execute(batch);
+                    }
+                }
+            }
+            record(con, version, script);
+            con.commit();
+        } catch (SQLException e) {
+            failure = new SQLException("Migration " + script.getFileName() + " failed: " + e.getMessage(),
+                    e.getSQLState(), e.getErrorCode(), e);
+            // after a severe error the server may have ended the transaction already, that must not hide why
+            try {
+                con.rollback();
+            } catch (SQLException rollbackFailure) {
+                failure.addSuppressed(rollbackFailure);
+            }
+            throw failure;
+        } finally {
+            try {
+                con.setAutoCommit(true);
+            } catch (SQLException autoCommitFailure) {
+                if (failure == null) {
+                    throw autoCommitFailure;
+                }
+                failure.addSuppressed(autoCommitFailure);
+            }
+        }
+    }
+
+    private static void record(Connection con, int version, Path script) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(ADD_VERSION)) {
+            statement.setInt(1, version);
+            statement.setString(2, script.getFileName().toString());
+            statement.executeUpdate();
+        }
+    }
+
+    private static int currentVersion(Connection con) throws SQLException {
+        try (Statement statement = con.createStatement();
+             ResultSet rs = statement.executeQuery(GET_VERSION)) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    private static boolean hasTables(Connection con) throws SQLException {
+        try (Statement statement = con.createStatement();
+             ResultSet rs = statement.executeQuery(HAS_TABLES)) {
+            return rs.next() && rs.getObject(1) != null;
+        }
+    }
+
+    private static void lock(Connection con) throws SQLException {
+        try (CallableStatement statement = con.prepareCall(
+                "{? = call sp_getapplock(?, 'Exclusive', 'Session', ?)}")) {
+            statement.registerOutParameter(1, Types.INTEGER);
+            statement.setString(2, LOCK_NAME);
+            statement.setInt(3, LOCK_TIMEOUT_MS);
+            statement.execute();
+            if (statement.getInt(1) < 0) {
+                throw new SQLException("Timed out waiting for another server to finish migrating the schema");
+            }
+        }
+    }
+
+    private static void unlock(Connection con) throws SQLException {
+        try (CallableStatement statement = con.prepareCall(
+                "{call sp_releaseapplock(?, 'Session')}")) {
+            statement.setString(1, LOCK_NAME);
+            statement.execute();
+        }
+    }
+}
\ No newline at end of file
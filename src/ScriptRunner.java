@@ -0,0 +1,93 @@
+package scheduler;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Runs a file of scheduler commands without prompts, e.g. nightly dose loads or mass bookings.
+// Output is buffered, blank lines and lines starting with # are skipped, and a summary with per-command
+// counts and latency totals is printed at the end.
+public class ScriptRunner {
+
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    private final boolean stopOnError;
+
+    public ScriptRunner(boolean stopOnError) {
+        this.stopOnError = stopOnError;
+    }
+
+    // returns the number of failed commands
+    public long run(BufferedReader script) throws IOException {
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), OUTPUT_BUFFER_SIZE));
+        Session session = new Session(out);
+        Map<String, CommandTotals> totals = new TreeMap<>();
+        long failures = 0;
+        long lineNumber = 0;
+        long started = System.nanoTime();
+        try {
+            String line;
+            while ((line = script.readLine()) != null) {
+                lineNumber++;
+                String command = line.trim();
+                if (command.isEmpty() || command.startsWith("#")) {
+                    continue;
+                }
+                long start = System.nanoTime();
+                boolean keepGoing = Scheduler.execute(session, command);
+                long elapsed = System.nanoTime() - start;
+                boolean failed = session.takeFailure();
+
+                String operation = command.split(" ")[0];
+                totals.computeIfAbsent(operation, k -> new CommandTotals()).record(elapsed, failed);
+                if (failed) {
+                    failures++;
+                    if (stopOnError) {
+                        out.println("Stopped at line " + lineNumber + ": " + command);
+                        break;
+                    }
+                }
+                if (!keepGoing) {
+                    break;
+                }
+            }
+        } finally {
+            printSummary(out, totals, System.nanoTime() - started);
+            out.flush();
+        }
+        return failures;
+    }
+
+    private static void printSummary(PrintWriter out, Map<String, CommandTotals> totals, long elapsedNanos) {
+        long commands = 0;
+        out.println();
+        out.println(String.format("%-28s %10s %8s %14s %12s", "command", "count", "errors", "total ms", "avg ms"));
+        for (Map.Entry<String, CommandTotals> entry : totals.entrySet()) {
+            CommandTotals t = entry.getValue();
+            commands += t.count;
+            out.println(String.format("%-28s %10d %8d %14.3f %12.3f", entry.getKey(), t.count, t.errors,
+                    t.nanos / 1e6, t.nanos / 1e6 / t.count));
+        }
+        double seconds = elapsedNanos / 1e9;
+        out.println(String.format("%d commands in %.3f s (%.0f commands/sec)", commands, seconds,
+                commands / Math.max(seconds, 1e-9)));
+    }
+
+    private static class CommandTotals {
+        private long count;
+        private long errors;
+        private long nanos;
+
+        private void record(long elapsedNanos, boolean failed) {
+            count++;
+            nanos += elapsedNanos;
+            if (failed) {
+                errors++;
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,113 @@
+package scheduler;
+
+import scheduler.model.Caregiver;
+import scheduler.model.Patient;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+// State of one connected user: who is logged in and where the command output goes
+public class Session {
+
+    // Note: it is always true that at most one of currentCaregiver and currentPatient is not null
+    //       since only one user can be logged-in at a time per session
+    private Caregiver currentCaregiver = null;
+    private Patient currentPatient = null;
+    private final PrintWriter out;
+    // set when a command reported a failure, read and cleared by whoever runs the commands
+    private boolean failed = false;
+    // every failure since the session started, takeFailure() does not clear it
+    private long failures = 0;
+    // set for server clients: the only directory whose files they may read and write, null when they may not
+    // touch files at all; the local console and scripts use any path the user can
+    private final boolean remote;
+    private final Path fileDirectory;
+
+    public Session(PrintWriter out) {
+        this.out = out;
+        this.remote = false;
+        this.fileDirectory = null;
+    }
+
+    public Session(PrintWriter out, Path fileDirectory) {
+        this.out = out;
+        this.remote = true;
+        this.fileDirectory = fileDirectory;
+    }
+
+    public Caregiver getCaregiver() { return currentCaregiver; }
+    public Patient getPatient() { return currentPatient; }
+
+    public void setCaregiver(Caregiver caregiver) { this.currentCaregiver = caregiver; }
+    public void setPatient(Patient patient) { this.currentPatient = patient; }
+
+    public boolean canUseFiles() {
+        return !remote || fileDirectory != null;
+    }
+
+    // the file a command may use for the given name, or null when it is outside the session's directory
+    public Path resolveFile(String name) {
+        if (!remote) {
+            return Paths.get(name);
+        }
+        if (fileDirectory == null) {
+            return null;
+        }
+        try {
+            Path file = fileDirectory.resolve(name).normalize();
+            // the real path of the parent, so that a link inside the directory cannot lead out of it
+            Path parent = file.getParent();
+            if (parent == null || !parent.toRealPath().startsWith(fileDirectory) || Files.isSymbolicLink(file)) {
+                return null;
+            }
+            return file;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    public boolean isLoggedIn() {
+        return currentCaregiver != null || currentPatient != null;
+    }
+
+    public void logout() {
+        currentCaregiver = null;
+        currentPatient = null;
+    }
+
+    public void println() {
+        out.println();
+    }
+
+    public void println(String line) {
+        out.println(line);
+    }
+
+    // prints a failure message and remembers that the current command failed
+    public void error(String line) {
+        failed = true;
+        failures++;
+        out.println(line);
+    }
+
+    public boolean takeFailure() {
+        boolean result = failed;
+        failed = false;
+        return result;
+    }
+
+    public long getFailureCount() {
+        return failures;
+    }
+
+    public void print(CharSequence text) {
+        out.print(text);
+    }
+
+    public void flush() {
+        out.flush();
+    }
+}
\ No newline at end of file
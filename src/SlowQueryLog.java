@@ -0,0 +1,214 @@
+package scheduler.db;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Statements slower than SlowQueryThresholdMs, written to SlowQueryLogFile (slow-queries.log) by a background
+// thread. Callers only put the entry in a fixed-size buffer; when the writer falls behind and the buffer is full
+// the entry is dropped and counted instead of making the command wait for the disk.
+class SlowQueryLog {
+
+    private static final int DEFAULT_BUFFER_SIZE = 4_096;
+    private static final String DEFAULT_FILE = "slow-queries.log";
+
+    private static final long thresholdNanos = readThreshold();
+    private static volatile SlowQueryLog instance = null;
+    // the file could not be opened, tracing stays off instead of trying again on every connection
+    private static volatile boolean unavailable = false;
+
+    private final BlockingQueue<Query> buffer;
+    private final BufferedWriter out;
+    private final Thread writer;
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean closed = false;
+
+    // one execute call, rows is filled in later for queries whose results are still being read
+    static class Query {
+        private final long at = System.currentTimeMillis();
+        private final String sql;
+        private final List<String> parameters;
+        private final int batchSize;
+        private final long nanos;
+        private final String command;
+        private final String thread = Thread.currentThread().getName();
+        private volatile long rows;
+        private final String error;
+
+        Query(String sql, List<String> parameters, int batchSize, long nanos, long rows, String command,
+                String error) {
+            this.sql = sql;
+            this.parameters = parameters;
+            this.batchSize = batchSize;
+            this.nanos = nanos;
+            this.rows = rows;
+            this.command = command;
+            this.error = error;
+        }
+
+        void addRow() {
+            rows++;
+        }
+    }
+
+    private SlowQueryLog(BufferedWriter out, int bufferSize) {
+        this.out = out;
+        this.buffer = new ArrayBlockingQueue<>(bufferSize);
+        this.writer = new Thread(this::drain, "slow-query-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    // null when tracing is off, or the file could not be opened. Asked for on every borrowed connection, so the
+    // lock is only taken while there is no log yet.
+    static SlowQueryLog getInstance() {
+        SlowQueryLog log = instance;
+        if (log != null || thresholdNanos < 0 || unavailable) {
+            return log;
+        }
+        synchronized (SlowQueryLog.class) {
+            return open();
+        }
+    }
+
+    private static SlowQueryLog open() {
+        if (instance == null) {
+            String file = System.getenv("SlowQueryLogFile");
+            try {
+                BufferedWriter out = Files.newBufferedWriter(Paths.get(file == null || file.isEmpty()
+                                ? DEFAULT_FILE : file), StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                instance = new SlowQueryLog(out, readBufferSize());
+            } catch (IOException e) {
+                unavailable = true;
+                System.out.println("Could not open the slow query log, statements are not traced");
+                e.printStackTrace();
+            }
+        }
+        return instance;
+    }
+
+    static boolean isEnabled() {
+        return thresholdNanos >= 0;
+    }
+
+    static long getThresholdNanos() {
+        return thresholdNanos;
+    }
+
+    void add(Query query) {
+        if (closed || !buffer.offer(query)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    // writes what is still buffered and stops the writer
+    void close() {
+        synchronized (SlowQueryLog.class) {
+            closeLog();
+        }
+    }
+
+    private void closeLog() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        writer.interrupt();
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+            write(new ArrayList<>(buffer));
+            out.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        instance = null;
+    }
+
+    private void drain() {
+        List<Query> batch = new ArrayList<>();
+        while (!closed) {
+            try {
+                Query first = buffer.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                buffer.drainTo(batch);
+                write(batch);
+                batch.clear();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(List<Query> batch) throws IOException {
+        long lost = dropped.getAndSet(0);
+        if (lost > 0) {
+            out.write(Instant.now() + " " + lost + " slow statements dropped, the log could not keep up");
+            out.newLine();
+        }
+        for (Query query : batch) {
+            StringBuilder line = new StringBuilder();
+            line.append(Instant.ofEpochMilli(query.at)).append(' ')
+                    .append(String.format("%.3f ms", query.nanos / 1e6))
+                    .append(" command=").append(query.command)
+                    .append(" thread=").append(query.thread);
+            if (query.error != null) {
+                line.append(" failed=\"").append(query.error).append('"');
+            } else {
+                line.append(" rows=").append(query.rows);
+            }
+            if (query.batchSize > 0) {
+                line.append(" batch=").append(query.batchSize);
+            }
+            line.append(" sql=\"").append(query.sql.replaceAll("\\s+", " ").trim()).append('"');
+            if (!query.parameters.isEmpty()) {
+                line.append(" parameters=").append(query.parameters);
+            }
+            out.write(line.toString());
+            out.newLine();
+        }
+        out.flush();
+    }
+
+    private static long readThreshold() {
+        String setting = System.getenv("SlowQueryThresholdMs");
+        if (setting != null && !setting.isEmpty()) {
+            try {
+                return TimeUnit.MILLISECONDS.toNanos(Math.max(0, Long.parseLong(setting.trim())));
+            } catch (NumberFormatException e) {
+                System.out.println("Ignoring invalid value for SlowQueryThresholdMs: " + setting);
+            }
+        }
+        return -1;
+    }
+
+    private static int readBufferSize() {
+        String setting = System.getenv("SlowQueryBufferSize");
+        if (setting != null && !setting.isEmpty()) {
+            try {
+                return Math.max(1, Integer.parseInt(setting.trim()));
+            } catch (NumberFormatException e) {
+                System.out.println("Ignoring invalid value for SlowQueryBufferSize: " + setting);
+            }
+        }
+        return DEFAULT_BUFFER_SIZE;
+    }
+}
\ No newline at end of file
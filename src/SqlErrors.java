@@ -0,0 +1,25 @@
+package scheduler.db;
+
+import java.sql.SQLException;
+
+// Classifies SQL Server errors that callers handle differently from a plain failure
+public class SqlErrors {
+
+    // PRIMARY KEY / unique index violations
+    private static final int PRIMARY_KEY_VIOLATION = 2627;
+    private static final int UNIQUE_INDEX_VIOLATION = 2601;
+    // deadlock victim and lock request timeout
+    private static final int DEADLOCK_ERROR = 1205;
+    private static final int LOCK_TIMEOUT_ERROR = 1222;
+
+    public static boolean isDuplicateKey(SQLException e) {
+        return e.getErrorCode() == PRIMARY_KEY_VIOLATION || e.getErrorCode() == UNIQUE_INDEX_VIOLATION ||
+                "23505".equals(e.getSQLState());
+    }
+
+    // the transaction lost a conflict with another one and can simply be run again
+    public static boolean isSerializationFailure(SQLException e) {
+        return "40001".equals(e.getSQLState()) || e.getErrorCode() == DEADLOCK_ERROR ||
+                e.getErrorCode() == LOCK_TIMEOUT_ERROR;
+    }
+}
\ No newline at end of file
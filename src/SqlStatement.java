@@ -0,0 +1,108 @@
+package scheduler.db;
+
+// Every statement the scheduler runs more than once, defined in one place. ConnectionManager.prepare()
+// hands out a cached PreparedStatement for these, so repeated commands skip the server-side parse and plan.
+public enum SqlStatement {
+
+    // Caregivers
+    ADD_CAREGIVER("INSERT INTO Caregivers (Username, Salt, Hash, Iterations) VALUES (? , ?, ?, ?)"),
+    GET_CAREGIVER("SELECT Salt, Hash, Iterations FROM Caregivers WHERE Username = ?"),
+    UPGRADE_CAREGIVER_HASH("UPDATE Caregivers SET Salt = ?, Hash = ?, Iterations = ? WHERE Username = ?"),
+    CAREGIVER_EXISTS("SELECT Username FROM Caregivers WHERE Username = ?"),
+    LIST_CAREGIVER_USERNAMES("SELECT Username FROM Caregivers"),
+
+    // Patients
+    ADD_PATIENT("INSERT INTO Patients (Username, Salt, Hash, Iterations) VALUES (? , ?, ?, ?)"),
+    GET_PATIENT("SELECT Salt, Hash, Iterations FROM Patients WHERE Username = ?"),
+    UPGRADE_PATIENT_HASH("UPDATE Patients SET Salt = ?, Hash = ?, Iterations = ? WHERE Username = ?"),
+    PATIENT_EXISTS("SELECT Username FROM Patients WHERE Username = ?"),
+    LIST_PATIENT_USERNAMES("SELECT Username FROM Patients"),
+
+    // Availabilities
+    ADD_AVAILABILITY("INSERT INTO Availabilities VALUES (? , ?)"),
+    // the key range lock is held to the insert, so two uploads of the same date cannot both find it absent
+    ADD_AVAILABILITY_IF_ABSENT("INSERT INTO Availabilities (Time, Username) " +
+            "SELECT ?, ? " +
+            "WHERE NOT EXISTS (SELECT 1 FROM Availabilities WITH (UPDLOCK, HOLDLOCK) " +
+            "WHERE Time = ? AND Username = ?)"),
+    LIST_AVAILABILITIES("SELECT Time, Username FROM Availabilities"),
+    CLAIM_AVAILABILITY("DELETE FROM Availabilities WITH (ROWLOCK) " +
+            "WHERE Time = ? AND Username = ?"),
+    // same, but a row another transaction holds is skipped instead of waited for
+    CLAIM_UNLOCKED_AVAILABILITY("DELETE FROM Availabilities WITH (ROWLOCK, READPAST) " +
+            "WHERE Time = ? AND Username = ?"),
+
+    // Vaccines
+    ADD_VACCINE("INSERT INTO Vaccines (Name, Doses) VALUES (?, ?)"),
+    GET_VACCINE_DOSES("SELECT Doses FROM Vaccines WHERE Name = ?"),
+    LIST_VACCINES("SELECT Name, Doses FROM Vaccines"),
+    CHECK_VACCINE("SELECT Name FROM Vaccines WHERE Name = ?"),
+    LIST_VACCINE_STOCK("SELECT Name, Doses, Version FROM Vaccines"),
+    // compare-and-set, a zero row count means someone changed the row since it was read
+    SET_VACCINE_DOSES("UPDATE Vaccines " +
+            "SET Doses = ?, Version = Version + 1 " +
+            "WHERE Name = ? AND Version = ?"),
+    // takes one dose only if there is one left, the row count tells whether it worked
+    CLAIM_DOSE("UPDATE Vaccines " +
+            "SET Doses = Doses - 1, Version = Version + 1 " +
+            "WHERE Name = ? AND Doses > 0"),
+    MERGE_VACCINE_DOSES("MERGE Vaccines WITH (HOLDLOCK) AS Target " +
+            "USING (SELECT ? AS Name, ? AS Doses) AS Source " +
+            "ON Target.Name = Source.Name " +
+            "WHEN MATCHED THEN UPDATE SET Doses = Target.Doses + Source.Doses, Version = Target.Version + 1 " +
+            "WHEN NOT MATCHED THEN INSERT (Name, Doses) VALUES (Source.Name, Source.Doses);"),
+
+    // Appointments
+    ADD_APPOINTMENT("INSERT INTO Appointments " +
+            "(AppointmentID, Time, Vaccine, Patient, Caregiver) " +
+            "VALUES (?, ?, ?, ?, ?) "),
+    // keyset pagination: the page starts right after the last ID of the previous page
+    SHOW_CAREGIVER_APPOINTMENTS("SELECT TOP (?) AppointmentID, Vaccine, Time, Patient " +
+            "FROM Appointments " +
+            "WHERE Caregiver = ? AND AppointmentID > ? " +
+            "ORDER BY AppointmentID"),
+    SHOW_PATIENT_APPOINTMENTS("SELECT TOP (?) AppointmentID, Vaccine, Time, Caregiver " +
+            "FROM Appointments " +
+            "WHERE Patient = ? AND AppointmentID > ? " +
+            "ORDER BY AppointmentID"),
+    TAKE_APPOINTMENT_ID_BLOCK("UPDATE AppointmentIdBlocks " +
+            "SET NextValue = NextValue + ? " +
+            "OUTPUT DELETED.NextValue " +
+            "WHERE Name = ?"),
+    CREATE_APPOINTMENT_ID_SEQUENCE("INSERT INTO AppointmentIdBlocks (Name, NextValue) VALUES (?, 0)"),
+    // set-based cancels: one batch, whatever the number of appointments, see cancelWhere
+    CANCEL_PATIENT_APPOINTMENT(cancelWhere("AppointmentID = ? AND Patient = ?")),
+    CANCEL_CAREGIVER_APPOINTMENT(cancelWhere("AppointmentID = ? AND Caregiver = ?")),
+    CANCEL_CAREGIVER_DAY(cancelWhere("Caregiver = ? AND Time = ?")),
+    CANCEL_VACCINE_DAY(cancelWhere("Vaccine = ? AND Time = ?"));
+
+    private final String sql;
+
+    SqlStatement(String sql) {
+        this.sql = sql;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    // Deletes the matching appointments into a table variable, gives every caregiver that lost one the day back,
+    // adds one dose per canceled appointment and returns the canceled rows. Run inside a transaction.
+    private static String cancelWhere(String condition) {
+        return "SET NOCOUNT ON; " +
+                "DECLARE @Canceled TABLE (AppointmentID varchar(6), Time date, Vaccine varchar(255), " +
+                "Patient varchar(255), Caregiver varchar(255)); " +
+                "DELETE FROM Appointments " +
+                "OUTPUT DELETED.AppointmentID, DELETED.Time, DELETED.Vaccine, DELETED.Patient, DELETED.Caregiver " +
+                "INTO @Canceled " +
+                "WHERE " + condition + "; " +
+                "INSERT INTO Availabilities (Time, Username) " +
+                "SELECT DISTINCT c.Time, c.Caregiver FROM @Canceled c " +
+                "WHERE NOT EXISTS (SELECT 1 FROM Availabilities a WITH (UPDLOCK, HOLDLOCK) " +
+                "WHERE a.Time = c.Time AND a.Username = c.Caregiver); " +
+                "UPDATE v SET Doses = v.Doses + c.Doses, Version = v.Version + 1 " +
+                "FROM Vaccines v JOIN (SELECT Vaccine, COUNT(*) AS Doses FROM @Canceled GROUP BY Vaccine) c " +
+                "ON v.Name = c.Vaccine; " +
+                "SELECT AppointmentID, Time, Vaccine, Patient, Caregiver FROM @Canceled ORDER BY AppointmentID";
+    }
+}
\ No newline at end of file
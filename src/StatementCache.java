@@ -0,0 +1,85 @@
+package scheduler.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Prepared statements of one pooled connection, least recently used first. Only the borrower of the
+// connection touches it, so it needs no locking. Statements are closed when evicted or when the pool
+// retires the connection.
+class StatementCache {
+
+    private static final int DEFAULT_CAPACITY = 64;
+    private static final int capacity = readCapacity();
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+
+    private final Connection connection;
+    private final LinkedHashMap<SqlStatement, PreparedStatement> statements =
+            new LinkedHashMap<SqlStatement, PreparedStatement>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<SqlStatement, PreparedStatement> eldest) {
+                    if (size() <= capacity) {
+                        return false;
+                    }
+                    evictions.incrementAndGet();
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+            };
+
+    StatementCache(Connection connection) {
+        this.connection = connection;
+    }
+
+    PreparedStatement get(SqlStatement sql) throws SQLException {
+        PreparedStatement statement = statements.get(sql);
+        if (statement != null && !statement.isClosed()) {
+            hits.incrementAndGet();
+            // a previous borrower may have failed half way through binding or batching
+            statement.clearParameters();
+            statement.clearBatch();
+            return statement;
+        }
+        misses.incrementAndGet();
+        statement = connection.prepareStatement(sql.getSql());
+        statements.put(sql, statement);
+        return statement;
+    }
+
+    void close() {
+        for (PreparedStatement statement : statements.values()) {
+            closeQuietly(statement);
+        }
+        statements.clear();
+    }
+
+    static long getHits() { return hits.get(); }
+    static long getMisses() { return misses.get(); }
+    static long getEvictions() { return evictions.get(); }
+
+    private static void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            // the statement is unusable either way
+        }
+    }
+
+    private static int readCapacity() {
+        String setting = System.getenv("StatementCacheSize");
+        if (setting != null && !setting.isEmpty()) {
+            try {
+                return Math.max(1, Integer.parseInt(setting.trim()));
+            } catch (NumberFormatException e) {
+                System.out.println("Ignoring invalid value for StatementCacheSize: " + setting);
+            }
+        }
+        return DEFAULT_CAPACITY;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,165 @@
+package scheduler.db;
+
+import java.io.IOException;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+// Everything the scheduler keeps, independent of where it is kept. JdbcStorage is the SQL Server database,
+// EmbeddedStorage keeps the same tables in this process with a local journal so a clinic can run offline.
+// StorageBackend picks one of them (jdbc unless set to embedded).
+public interface Storage {
+
+    enum Account {
+        CAREGIVER,
+        PATIENT
+    }
+
+    class Credentials {
+        private final byte[] salt;
+        private final byte[] hash;
+        private final int iterations;
+
+        public Credentials(byte[] salt, byte[] hash, int iterations) {
+            this.salt = salt;
+            this.hash = hash;
+            this.iterations = iterations;
+        }
+
+        public byte[] getSalt() { return salt; }
+        public byte[] getHash() { return hash; }
+        // 0 for rows written before the cost was stored
+        public int getIterations() { return iterations; }
+    }
+
+    class Appointment {
+        private final String appointmentId;
+        private final Date time;
+        private final String vaccine;
+        private final String patient;
+        private final String caregiver;
+
+        public Appointment(String appointmentId, Date time, String vaccine, String patient, String caregiver) {
+            this.appointmentId = appointmentId;
+            this.time = time;
+            this.vaccine = vaccine;
+            this.patient = patient;
+            this.caregiver = caregiver;
+        }
+
+        public String getAppointmentId() { return appointmentId; }
+        public Date getTime() { return time; }
+        public String getVaccine() { return vaccine; }
+        public String getPatient() { return patient; }
+        public String getCaregiver() { return caregiver; }
+    }
+
+    // a vaccine's doses and the row version they were read at
+    class Stock {
+        private final int doses;
+        private final int version;
+
+        public Stock(int doses, int version) {
+            this.doses = doses;
+            this.version = version;
+        }
+
+        public int getDoses() { return doses; }
+        public int getVersion() { return version; }
+    }
+
+    interface RowVisitor {
+        void visit(String[] values) throws IOException;
+    }
+
+    // brings the schema up to date, or replays the journal
+    void open() throws IOException, SQLException;
+
+    void close();
+
+    // Caregivers and Patients
+    void addAccount(Account account, String username, byte[] salt, byte[] hash, int iterations) throws SQLException;
+
+    // null if there is no such user
+    Credentials getCredentials(Account account, String username) throws SQLException;
+
+    void updateCredentials(Account account, String username, byte[] salt, byte[] hash, int iterations)
+            throws SQLException;
+
+    boolean accountExists(Account account, String username) throws SQLException;
+
+    void forEachUsername(Account account, Consumer<String> action) throws SQLException;
+
+    // Availabilities
+    void addAvailability(Date date, String caregiver) throws SQLException;
+
+    // one transaction, dates the caregiver already has are skipped; returns the dates that were added
+    List<Date> addAvailabilities(String caregiver, Collection<Date> dates) throws SQLException;
+
+    void forEachAvailability(BiConsumer<LocalDate, String> action) throws SQLException;
+
+    // Vaccines
+    void addVaccine(String name, int doses) throws SQLException;
+
+    // null if the vaccine is not in the catalog
+    Integer getDoses(String name) throws SQLException;
+
+    void forEachVaccine(BiConsumer<String, Integer> action) throws SQLException;
+
+    // name -> doses and row version for the given vaccines, ones not in the catalog are left out
+    Map<String, Stock> getStocks(Collection<String> names) throws SQLException;
+
+    // Writes the new doses in one transaction, each only if its row still has the version in read, and bumps the
+    // version. Returns the vaccines whose row had changed since it was read; those are left as they are.
+    Set<String> compareAndSetDoses(Map<String, Stock> read, Map<String, Integer> doses) throws SQLException;
+
+    // adds the doses in one transaction, vaccines that are not in the catalog yet are created
+    void mergeDoses(Map<String, Integer> doses) throws SQLException;
+
+    // Appointments
+    // Claims the first candidate caregiver that is still free on the date, one dose and the appointment row, all
+    // or nothing. Candidates that turn out to be taken already are passed to stale.
+    ReservationEngine.Reservation reserve(String appointmentId, Date date, String vaccine, String patient,
+            Iterable<String> candidates, Consumer<String> stale) throws SQLException;
+
+    // Books requests (appointments that have an ID but no caregiver yet, all on one date) in order, each with the
+    // next free candidate and one dose, in a single transaction. Requests whose vaccine has no dose left are
+    // skipped and booking stops when the candidates run out. Returns the booked appointments with their caregivers.
+    List<Appointment> reserveAll(List<Appointment> requests, Iterable<String> candidates, Consumer<String> stale)
+            throws SQLException;
+
+    // The cancels remove the matching appointments, put each caregiver's day back into Availabilities and return
+    // the doses to Vaccines, all in one transaction. They return the appointments that were canceled.
+
+    // the appointment, only if it belongs to the given patient or caregiver
+    List<Appointment> cancelAppointment(String appointmentId, Account owner, String username) throws SQLException;
+
+    // every appointment of the caregiver on the date
+    List<Appointment> cancelCaregiverDay(String caregiver, Date date) throws SQLException;
+
+    // every appointment for the vaccine on the date
+    List<Appointment> cancelVaccineDay(String vaccine, Date date) throws SQLException;
+
+    // the owner's appointments with an ID after the given one, in ID order
+    List<Appointment> getAppointments(Account owner, String username, String after, int limit) throws SQLException;
+
+    // reserves size values of the named sequence and returns the first one
+    long reserveIdBlock(String sequence, long size) throws SQLException;
+
+    // from and to are inclusive and may be null
+    void export(TableExporter.Table table, Date from, Date to, RowVisitor visitor) throws IOException, SQLException;
+
+    static Storage getDefault() {
+        String backend = System.getenv("StorageBackend");
+        if (backend != null && backend.trim().equalsIgnoreCase("embedded")) {
+            return EmbeddedStorage.getInstance();
+        }
+        return JdbcStorage.getInstance();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,194 @@
+package scheduler.db;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.zip.GZIPOutputStream;
+
+// Streams a whole table to a file for downstream reporting. Rows come off the storage one at a time and are
+// encoded straight into one reusable byte buffer that is drained into a FileChannel, so heap use does not
+// depend on the number of rows.
+public class TableExporter {
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    public enum Table {
+        APPOINTMENTS("Appointments", "AppointmentID", "Time", "Vaccine", "Patient", "Caregiver"),
+        AVAILABILITIES("Availabilities", "Time", "Username");
+
+        private final String tableName;
+        private final String[] columns;
+
+        Table(String tableName, String... columns) {
+            this.tableName = tableName;
+            this.columns = columns;
+        }
+
+        String getTableName() {
+            return tableName;
+        }
+
+        String[] getColumns() {
+            return columns;
+        }
+    }
+
+    public enum Format {
+        CSV,
+        JSONL
+    }
+
+    public static class ExportResult {
+        private final long rows;
+        private final long bytes;
+
+        private ExportResult(long rows, long bytes) {
+            this.rows = rows;
+            this.bytes = bytes;
+        }
+
+        public long getRows() { return rows; }
+        public long getBytes() { return bytes; }
+    }
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private WritableByteChannel channel;
+    private long bytesWritten;
+
+    // from and to are inclusive and may be null
+    public ExportResult export(Table table, Path file, Format format, Date from, Date to, boolean gzip)
+            throws IOException, SQLException {
+        long[] rows = new long[1];
+        bytesWritten = 0;
+        buffer.clear();
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            channel = gzip
+                    ? Channels.newChannel(new GZIPOutputStream(Channels.newOutputStream(fileChannel), BUFFER_SIZE))
+                    : fileChannel;
+            if (format == Format.CSV) {
+                writeCsvRow(table.columns);
+            }
+            Storage.getDefault().export(table, from, to, values -> {
+                if (format == Format.CSV) {
+                    writeCsvRow(values);
+                } else {
+                    writeJsonRow(table.columns, values);
+                }
+                rows[0]++;
+            });
+            drain();
+            if (channel != fileChannel) {
+                // closing the gzip channel writes the trailer, the file channel is closed afterwards
+                channel.close();
+            }
+        } finally {
+            channel = null;
+        }
+        return new ExportResult(rows[0], bytesWritten);
+    }
+
+    private void writeCsvRow(String[] values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                putByte((byte) ',');
+            }
+            String value = values[i];
+            if (value == null) {
+                continue;
+            }
+            boolean quote = false;
+            for (int j = 0; j < value.length() && !quote; j++) {
+                char c = value.charAt(j);
+                quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+            }
+            if (!quote) {
+                put(value);
+                continue;
+            }
+            putByte((byte) '"');
+            int start = 0;
+            for (int j = 0; j < value.length(); j++) {
+                if (value.charAt(j) == '"') {
+                    put(value.substring(start, j + 1));
+                    putByte((byte) '"');
+                    start = j + 1;
+                }
+            }
+            put(value.substring(start));
+            putByte((byte) '"');
+        }
+        putByte((byte) '\n');
+    }
+
+    private void writeJsonRow(String[] columns, String[] values) throws IOException {
+        putByte((byte) '{');
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                putByte((byte) ',');
+            }
+            putByte((byte) '"');
+            put(columns[i]);
+            put("\":");
+            if (values[i] == null) {
+                put("null");
+                continue;
+            }
+            putByte((byte) '"');
+            String value = values[i];
+            int start = 0;
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                if (c == '"' || c == '\\' || c < 0x20) {
+                    put(value.substring(start, j));
+                    put(c == '"' ? "\\\"" : c == '\\' ? "\\\\" : String.format("\\u%04x", (int) c));
+                    start = j + 1;
+                }
+            }
+            put(value.substring(start));
+            putByte((byte) '"');
+        }
+        put("}\n");
+    }
+
+    private void put(String text) throws IOException {
+        CharBuffer chars = CharBuffer.wrap(text);
+        encoder.reset();
+        while (true) {
+            CoderResult result = encoder.encode(chars, buffer, true);
+            if (result.isOverflow()) {
+                drain();
+            } else if (result.isError()) {
+                result.throwException();
+            } else {
+                break;
+            }
+        }
+    }
+
+    private void putByte(byte b) throws IOException {
+        if (!buffer.hasRemaining()) {
+            drain();
+        }
+        buffer.put(b);
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            bytesWritten += channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
\ No newline at end of file
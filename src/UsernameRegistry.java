@@ -0,0 +1,71 @@
+package scheduler.db;
+
+import scheduler.util.BloomFilter;
+
+import java.sql.SQLException;
+import java.util.Locale;
+
+// Remembers which usernames are taken so that sign-ups for new names can skip the lookup query.
+// A "no" from mightExist is definite; a "yes" still has to be confirmed against the table, and the
+// PRIMARY KEY on the table stays the final word for names added by other processes.
+public class UsernameRegistry {
+
+    private static final long DEFAULT_CAPACITY = 1_000_000;
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+
+    private static final UsernameRegistry patients = new UsernameRegistry(Storage.Account.PATIENT);
+    private static final UsernameRegistry caregivers = new UsernameRegistry(Storage.Account.CAREGIVER);
+
+    private final Storage.Account account;
+    private final BloomFilter filter;
+    private volatile boolean loaded = false;
+
+    private UsernameRegistry(Storage.Account account) {
+        this.account = account;
+        long capacity = DEFAULT_CAPACITY;
+        String setting = System.getenv("UsernameFilterCapacity");
+        if (setting != null && !setting.isEmpty()) {
+            try {
+                capacity = Math.max(1, Long.parseLong(setting.trim()));
+            } catch (NumberFormatException e) {
+                System.out.println("Ignoring invalid value for UsernameFilterCapacity: " + setting);
+            }
+        }
+        this.filter = new BloomFilter(capacity, FALSE_POSITIVE_RATE);
+    }
+
+    public static UsernameRegistry patients() {
+        return patients;
+    }
+
+    public static UsernameRegistry caregivers() {
+        return caregivers;
+    }
+
+    public boolean mightExist(String username) throws SQLException {
+        ensureLoaded();
+        return filter.mightContain(normalize(username));
+    }
+
+    public void add(String username) {
+        filter.add(normalize(username));
+    }
+
+    // usernames compare case-insensitively in the default SQL Server collation
+    private static String normalize(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+
+    private void ensureLoaded() throws SQLException {
+        if (loaded) {
+            return;
+        }
+        synchronized (this) {
+            if (loaded) {
+                return;
+            }
+            Storage.getDefault().forEachUsername(account, this::add);
+            loaded = true;
+        }
+    }
+}
\ No newline at end of file
@@ -11,9 +11,18 @@ import java.util.Arrays;
 public class Util {
 
     // constants for handling password
-    private static final int HASH_STRENGTH = 10;
+    public static final int HASH_STRENGTH = 10;
     private static final int KEY_LENGTH = 16;
 
+    // SecretKeyFactory lookups go through the provider list every time, so each thread keeps its own instance
+    private static final ThreadLocal<SecretKeyFactory> FACTORY = ThreadLocal.withInitial(() -> {
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException();
+        }
+    });
+
     public static byte[] generateSalt() {
         // Generate a random cryptographic salt
         SecureRandom random = new SecureRandom();
@@ -23,16 +32,18 @@ public class Util {
     }
 
     public static byte[] generateHash(String password, byte[] salt) {
+        return generateHash(password, salt, HASH_STRENGTH);
+    }
+
+    public static byte[] generateHash(String password, byte[] salt, int iterations) {
         // Specify the hash parameters
-        KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, HASH_STRENGTH, KEY_LENGTH);
+        KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, KEY_LENGTH);
 
         // Generate the hash
-        SecretKeyFactory factory = null;
         byte[] hash = null;
         try {
-            factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-            hash = factory.generateSecret(spec).getEncoded();
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException ex) {
+            hash = FACTORY.get().generateSecret(spec).getEncoded();
+        } catch (InvalidKeySpecException ex) {
             throw new IllegalStateException();
         }
         return hash;
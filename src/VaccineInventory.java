@@ -0,0 +1,254 @@
+package scheduler.db;
+
+import scheduler.util.Metrics;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// In-memory dose counters for every vaccine. Added doses are counted here right away and written to the
+// Vaccines table as deltas in the background, reservations take doses in their own transaction and only
+// report the result back. The table stays the durable record. Writes from here are compare-and-set on the row's
+// Version, so a change that lands between reading a row and writing it back is retried instead of overwritten.
+public class VaccineInventory {
+
+    private static final long DEFAULT_FLUSH_INTERVAL_MS = 1_000;
+    private static final int MAX_ATTEMPTS = 5;
+
+    private static final VaccineInventory instance = new VaccineInventory();
+
+    // Keyed by the lower-cased name because the table compares names case-insensitively; names keeps the
+    // spelling the catalog uses.
+    private final ConcurrentMap<String, String> names = new ConcurrentHashMap<>();
+    // doses as seen by this process, including deltas that are not flushed yet
+    private final ConcurrentMap<String, AtomicInteger> stock = new ConcurrentHashMap<>();
+    // deltas waiting to be written to the table
+    private final ConcurrentMap<String, AtomicInteger> pending = new ConcurrentHashMap<>();
+    private final Object flushLock = new Object();
+    private final Storage storage = Storage.getDefault();
+    private final ScheduledExecutorService flusher;
+    private volatile boolean loaded = false;
+
+    private VaccineInventory() {
+        long interval = DEFAULT_FLUSH_INTERVAL_MS;
+        String setting = System.getenv("InventoryFlushIntervalMs");
+        if (setting != null && !setting.isEmpty()) {
+            try {
+                interval = Math.max(1, Long.parseLong(setting.trim()));
+            } catch (NumberFormatException e) {
+                System.out.println("Ignoring invalid value for InventoryFlushIntervalMs: " + setting);
+            }
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "vaccine-inventory-flush");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, interval, interval, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flushQuietly, "vaccine-inventory-shutdown"));
+    }
+
+    public static VaccineInventory getInstance() {
+        return instance;
+    }
+
+    // current doses for the vaccine, or null if it is not in the catalog
+    public Integer getDoses(String vaccineName) throws SQLException {
+        ensureLoaded();
+        AtomicInteger doses = stock.get(key(vaccineName));
+        return doses == null ? null : doses.get();
+    }
+
+    // name -> doses for the whole catalog, sorted by name
+    public SortedMap<String, Integer> snapshot() throws SQLException {
+        ensureLoaded();
+        SortedMap<String, Integer> result = new TreeMap<>();
+        for (Map.Entry<String, AtomicInteger> entry : stock.entrySet()) {
+            result.put(names.getOrDefault(entry.getKey(), entry.getKey()), entry.getValue().get());
+        }
+        return result;
+    }
+
+    // records a vaccine that was just inserted into the table
+    public void register(String vaccineName, int doses) throws SQLException {
+        ensureLoaded();
+        names.putIfAbsent(key(vaccineName), vaccineName);
+        stock.computeIfAbsent(key(vaccineName), k -> new AtomicInteger()).set(doses);
+    }
+
+    // Adds doses now, the table is updated by the next flush. A total that does not fit an int throws
+    // ArithmeticException before anything changes; the counter includes every pending delta, so if it fits the
+    // pending delta does too.
+    public void addDoses(String vaccineName, int delta) throws SQLException {
+        ensureLoaded();
+        stock.computeIfAbsent(key(vaccineName), k -> new AtomicInteger()).updateAndGet(d -> Math.addExact(d, delta));
+        pending.computeIfAbsent(key(vaccineName), k -> new AtomicInteger()).addAndGet(delta);
+    }
+
+    // records a change that has already been committed to the table by someone else (e.g. a reservation)
+    public void applyPersisted(String vaccineName, int delta) {
+        AtomicInteger doses = stock.get(key(vaccineName));
+        if (doses != null) {
+            doses.addAndGet(delta);
+        }
+    }
+
+    // takes the doses from the table only if it has enough of them, returns whether it did
+    public boolean removeDoses(String vaccineName, int doses) throws SQLException {
+        if (hasPending(vaccineName)) {
+            flush();
+        }
+        Map<String, Integer> delta = new HashMap<>();
+        delta.put(key(vaccineName), -doses);
+        if (!writeDeltas(delta).isEmpty()) {
+            return false;
+        }
+        applyPersisted(vaccineName, -doses);
+        return true;
+    }
+
+    public boolean hasPending(String vaccineName) {
+        AtomicInteger delta = pending.get(key(vaccineName));
+        return delta != null && delta.get() != 0;
+    }
+
+    // re-reads one vaccine from the table, used when the counter turned out to be behind the table
+    public void refresh(String vaccineName) throws SQLException {
+        flush();
+        resync(key(vaccineName));
+    }
+
+    private void resync(String key) throws SQLException {
+        Integer doses = storage.getDoses(key);
+        if (doses != null) {
+            AtomicInteger delta = pending.get(key);
+            int unflushed = delta == null ? 0 : delta.get();
+            stock.computeIfAbsent(key, k -> new AtomicInteger()).set(doses + unflushed);
+        } else {
+            stock.remove(key);
+            names.remove(key);
+        }
+    }
+
+    // writes all pending deltas to the table in one batch
+    public void flush() throws SQLException {
+        synchronized (flushLock) {
+            Map<String, Integer> deltas = new LinkedHashMap<>();
+            for (Map.Entry<String, AtomicInteger> entry : pending.entrySet()) {
+                int delta = entry.getValue().getAndSet(0);
+                if (delta != 0) {
+                    deltas.put(entry.getKey(), delta);
+                }
+            }
+            if (deltas.isEmpty()) {
+                return;
+            }
+
+            Set<String> skipped;
+            try {
+                skipped = writeDeltas(deltas);
+            } catch (SQLException | RuntimeException e) {
+                // put the deltas that were not written back so that the next flush tries again
+                for (Map.Entry<String, Integer> entry : deltas.entrySet()) {
+                    pending.computeIfAbsent(entry.getKey(), k -> new AtomicInteger()).addAndGet(entry.getValue());
+                }
+                throw e;
+            }
+            // the table could not take these (the vaccine is gone or the total would not fit), so the counter
+            // that already showed the doses goes back to what the table says
+            for (String key : skipped) {
+                System.out.println("Could not save doses for " + names.getOrDefault(key, key) +
+                        ", it is no longer in the catalog or the total is too large");
+                resync(key);
+            }
+        }
+    }
+
+    // Writes doses + delta for every vaccine where the row's version is still the one read, then reads again only
+    // the vaccines that lost to another writer (a reservation, a cancel, another process), with backoff and a
+    // bounded number of attempts. Written entries are removed from deltas as it goes, so on an exception it
+    // holds what is left. A delta that would leave fewer than zero doses or more than fit an int, or for a vaccine
+    // that is not in the catalog, is not written; those vaccines are returned.
+    private Set<String> writeDeltas(Map<String, Integer> deltas) throws SQLException {
+        Metrics metrics = Metrics.getInstance();
+        Set<String> skipped = new HashSet<>();
+        for (int attempt = 1; ; attempt++) {
+            Map<String, Storage.Stock> read = storage.getStocks(deltas.keySet());
+            Map<String, Integer> doses = new HashMap<>();
+            for (Map.Entry<String, Integer> delta : deltas.entrySet()) {
+                Storage.Stock stock = read.get(delta.getKey());
+                long updated = stock == null ? -1 : (long) stock.getDoses() + delta.getValue();
+                if (updated < 0 || updated > Integer.MAX_VALUE) {
+                    skipped.add(delta.getKey());
+                } else {
+                    doses.put(delta.getKey(), (int) updated);
+                }
+            }
+            deltas.keySet().removeAll(skipped);
+            if (doses.isEmpty()) {
+                return skipped;
+            }
+
+            Set<String> changed = storage.compareAndSetDoses(read, doses);
+            for (String name : doses.keySet()) {
+                metrics.stockWritten(names.getOrDefault(name, name), changed.contains(name));
+            }
+            deltas.keySet().retainAll(changed);
+            if (deltas.isEmpty()) {
+                return skipped;
+            }
+            if (attempt >= MAX_ATTEMPTS) {
+                throw new SQLException("Stock of " + deltas.keySet() + " kept changing, gave up after " +
+                        MAX_ATTEMPTS + " attempts", "40001");
+            }
+            ReservationEngine.backoff(attempt);
+        }
+    }
+
+    private static String key(String vaccineName) {
+        return vaccineName.toLowerCase(Locale.ROOT);
+    }
+
+    public void shutdown() {
+        flusher.shutdown();
+        flushQuietly();
+    }
+
+    // also runs on the scheduled flusher, which would stop for good if an exception got out
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (SQLException | RuntimeException e) {
+            System.out.println("Error occurred when saving doses");
+            e.printStackTrace();
+        }
+    }
+
+    private void ensureLoaded() throws SQLException {
+        if (loaded) {
+            return;
+        }
+        synchronized (this) {
+            if (loaded) {
+                return;
+            }
+            storage.forEachVaccine((name, doses) -> {
+                names.putIfAbsent(key(name), name);
+                stock.putIfAbsent(key(name), new AtomicInteger(doses));
+            });
+            loaded = true;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,267 @@
+package scheduler.db;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+// Patients who asked for a date on which no caregiver was free, first come first served per date. Asking again
+// does not move a patient back or add a second entry, so retrying is pointless. Whenever capacity comes back
+// (an upload, a cancel, new doses) match() books the waiting patients for those dates, one transaction per batch.
+// Requests leave the list when they are booked (here or by the patient's own reserve), when their date has passed
+// or when the vaccine is no longer in the catalog. A request is only ever booked by one of match() and the
+// patient's reserve: each marks it while its transaction runs and the other one waits or leaves it alone.
+// The list lives in this process like the availability index; after a restart patients simply ask again.
+public class Waitlist {
+
+    // requests handed to one transaction, match() keeps going with the next batch while caregivers are free
+    private static final int MAX_BATCH = 500;
+
+    private static final Waitlist instance = new Waitlist();
+
+    // date -> (patient, vaccine) -> request, in the order the patients asked
+    private final TreeMap<LocalDate, LinkedHashMap<String, Storage.Appointment>> byDate = new TreeMap<>();
+    // one pass at a time, so a request can never be booked twice
+    private final Object matchLock = new Object();
+    // requests in a match transaction that has not finished yet, a reserve for one of them waits for it
+    private final Set<String> inFlight = new HashSet<>();
+    // requests whose patient is reserving them right now, match() leaves these alone
+    private final Set<String> held = new HashSet<>();
+    // date -> (patient, vaccine) -> the appointment a pass made, handed to the patient's next reserve for it
+    // instead of a second appointment; dropped when it is canceled or the date has passed
+    private final TreeMap<LocalDate, Map<String, Storage.Appointment>> matched = new TreeMap<>();
+    private final AvailabilityIndex index = AvailabilityIndex.getInstance();
+    private final VaccineInventory inventory = VaccineInventory.getInstance();
+    private final CaregiverAllocator allocator = CaregiverAllocator.getDefault();
+    private final Storage storage = Storage.getDefault();
+
+    private Waitlist() {
+    }
+
+    public static Waitlist getInstance() {
+        return instance;
+    }
+
+    // returns the patient's place in line for the date, starting at 1
+    private synchronized int add(Date date, String vaccine, String patient) {
+        LinkedHashMap<String, Storage.Appointment> requests =
+                byDate.computeIfAbsent(date.toLocalDate(), k -> new LinkedHashMap<>());
+        String key = key(patient, vaccine);
+        requests.putIfAbsent(key, new Storage.Appointment(null, date, vaccine, patient, null));
+        int position = 1;
+        for (String waiting : requests.keySet()) {
+            if (waiting.equals(key)) {
+                break;
+            }
+            position++;
+        }
+        return position;
+    }
+
+    // the patient got the appointment some other way, e.g. by asking again once a caregiver was free
+    public synchronized void remove(Date date, String vaccine, String patient) {
+        LinkedHashMap<String, Storage.Appointment> requests = byDate.get(date.toLocalDate());
+        if (requests != null && requests.remove(key(patient, vaccine)) != null && requests.isEmpty()) {
+            byDate.remove(date.toLocalDate());
+        }
+    }
+
+    // Called by the patient's own reserve before it books. A match pass that is booking the request right now is
+    // waited for, and an appointment a pass made for it is returned so the patient does not get a second one.
+    // Otherwise the request, if the patient is waiting at all, is kept out of passes until release(), keeping
+    // its place in line.
+    synchronized Storage.Appointment hold(Date date, String vaccine, String patient) throws SQLException {
+        LocalDate day = date.toLocalDate();
+        String request = request(day, patient, vaccine);
+        try {
+            while (inFlight.contains(request)) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while the waitlist was booking " + patient, e);
+        }
+        Map<String, Storage.Appointment> made = matched.get(day);
+        Storage.Appointment appointment = made == null ? null : made.remove(key(patient, vaccine));
+        if (appointment != null) {
+            if (made.isEmpty()) {
+                matched.remove(day);
+            }
+            return appointment;
+        }
+        LinkedHashMap<String, Storage.Appointment> requests = byDate.get(day);
+        if (requests != null && requests.containsKey(key(patient, vaccine))) {
+            held.add(request);
+        }
+        return null;
+    }
+
+    // the appointment was canceled, a pass's appointment must not be handed out after that
+    public synchronized void canceled(Storage.Appointment appointment) {
+        LocalDate day = appointment.getTime().toLocalDate();
+        Map<String, Storage.Appointment> made = matched.get(day);
+        String key = key(appointment.getPatient(), appointment.getVaccine());
+        if (made != null && made.containsKey(key)
+                && made.get(key).getAppointmentId().equals(appointment.getAppointmentId())) {
+            made.remove(key);
+            if (made.isEmpty()) {
+                matched.remove(day);
+            }
+        }
+    }
+
+    // Ends hold(). A request the reserve booked leaves the list, and join puts a patient who found no caregiver
+    // on it in the same step, so no pass can book them in between and then see them join again. Returns the
+    // patient's place in line, 0 when they are not waiting.
+    synchronized int release(Date date, String vaccine, String patient, boolean booked, boolean join) {
+        held.remove(request(date.toLocalDate(), patient, vaccine));
+        if (booked) {
+            remove(date, vaccine, patient);
+            return 0;
+        }
+        return join ? add(date, vaccine, patient) : 0;
+    }
+
+    public synchronized int size() {
+        return byDate.values().stream().mapToInt(Map::size).sum();
+    }
+
+    public synchronized List<LocalDate> getDates() {
+        expire();
+        return new ArrayList<>(byDate.keySet());
+    }
+
+    // books waiting patients on the given dates, returns the appointments that were made
+    public List<Storage.Appointment> match(Collection<LocalDate> days) throws SQLException {
+        List<Storage.Appointment> booked = new ArrayList<>();
+        synchronized (matchLock) {
+            for (LocalDate day : new TreeSet<>(days)) {
+                booked.addAll(match(day));
+            }
+        }
+        return booked;
+    }
+
+    // batch after batch until the day's list, its free caregivers or the doses run out
+    private List<Storage.Appointment> match(LocalDate day) throws SQLException {
+        List<Storage.Appointment> booked = new ArrayList<>();
+        while (true) {
+            List<Storage.Appointment> batch = matchBatch(day);
+            if (batch.isEmpty()) {
+                return booked;
+            }
+            booked.addAll(batch);
+        }
+    }
+
+    private List<Storage.Appointment> matchBatch(LocalDate day) throws SQLException {
+        NavigableSet<String> caregivers = index.getCaregivers(day);
+        if (caregivers.isEmpty()) {
+            return new ArrayList<>();
+        }
+        List<Storage.Appointment> requests = new ArrayList<>();
+        synchronized (this) {
+            expire();
+            LinkedHashMap<String, Storage.Appointment> waiting = byDate.get(day);
+            if (waiting == null) {
+                return new ArrayList<>();
+            }
+            Iterator<Storage.Appointment> it = waiting.values().iterator();
+            while (it.hasNext() && requests.size() < MAX_BATCH) {
+                Storage.Appointment request = it.next();
+                if (held.contains(request(day, request.getPatient(), request.getVaccine()))) {
+                    continue;
+                }
+                Integer doses = inventory.getDoses(request.getVaccine());
+                if (doses == null) {
+                    // the vaccine was taken out of the catalog, this request can never be booked
+                    it.remove();
+                } else if (doses > 0) {
+                    // out of stock requests stay in line for the next delivery without holding up the others
+                    requests.add(request);
+                }
+            }
+            if (waiting.isEmpty()) {
+                byDate.remove(day);
+            }
+            for (Storage.Appointment request : requests) {
+                inFlight.add(request(day, request.getPatient(), request.getVaccine()));
+            }
+        }
+        if (requests.isEmpty()) {
+            return requests;
+        }
+        List<Storage.Appointment> booked = new ArrayList<>();
+        try {
+            booked = book(day, caregivers, requests);
+        } finally {
+            synchronized (this) {
+                LinkedHashMap<String, Storage.Appointment> waiting = byDate.get(day);
+                for (Storage.Appointment appointment : booked) {
+                    String key = key(appointment.getPatient(), appointment.getVaccine());
+                    matched.computeIfAbsent(day, k -> new HashMap<>()).put(key, appointment);
+                    if (waiting != null) {
+                        waiting.remove(key);
+                    }
+                }
+                if (waiting != null && waiting.isEmpty()) {
+                    byDate.remove(day);
+                }
+                for (Storage.Appointment request : requests) {
+                    inFlight.remove(request(day, request.getPatient(), request.getVaccine()));
+                }
+                notifyAll();
+            }
+        }
+        return booked;
+    }
+
+    private List<Storage.Appointment> book(LocalDate day, NavigableSet<String> caregivers,
+            List<Storage.Appointment> requests) throws SQLException {
+        // doses added in this process must reach the table before the transaction takes them
+        inventory.flush();
+
+        // IDs are taken before the transaction, the ones that go unused only leave gaps
+        AppointmentIdGenerator idGenerator = AppointmentIdGenerator.getDefault();
+        List<Storage.Appointment> numbered = new ArrayList<>();
+        for (Storage.Appointment request : requests) {
+            numbered.add(new Storage.Appointment(idGenerator.nextId(), request.getTime(), request.getVaccine(),
+                    request.getPatient(), null));
+        }
+        List<Storage.Appointment> booked = storage.reserveAll(numbered, allocator.order(caregivers, null),
+                caregiver -> index.remove(day, caregiver));
+
+        for (Storage.Appointment appointment : booked) {
+            index.remove(day, appointment.getCaregiver());
+            inventory.applyPersisted(appointment.getVaccine(), -1);
+            allocator.booked(appointment.getCaregiver());
+        }
+        return booked;
+    }
+
+    // dates that have passed can no longer be booked
+    private void expire() {
+        byDate.headMap(LocalDate.now()).clear();
+        matched.headMap(LocalDate.now()).clear();
+    }
+
+    private static String key(String patient, String vaccine) {
+        return patient.toLowerCase(Locale.ROOT) + "\n" + vaccine.toLowerCase(Locale.ROOT);
+    }
+
+    private static String request(LocalDate day, String patient, String vaccine) {
+        return day + "\n" + key(patient, vaccine);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,12 @@
+-- show_appointments pages through one patient's or one caregiver's appointments in AppointmentID order.
+-- Both indexes cover the page query, so it is a range seek with no lookups into the clustered index.
+CREATE INDEX IX_Appointments_Patient ON Appointments (Patient, AppointmentID) INCLUDE (Time, Vaccine);
+
+CREATE INDEX IX_Appointments_Caregiver ON Appointments (Caregiver, AppointmentID) INCLUDE (Time, Vaccine);
+
+-- date range reads of Appointments (export, per day work) seek instead of scanning every appointment
+CREATE INDEX IX_Appointments_Time ON Appointments (Time);
+
+-- Availabilities is already clustered on (Time, Username), so lookups by Time alone are seeks. Lookups by
+-- caregiver, including the foreign key check when a caregiver row changes, need the reverse order.
+CREATE INDEX IX_Availabilities_Username ON Availabilities (Username, Time);
\ No newline at end of file
@@ -0,0 +1,3 @@
+-- Every change to a vaccine's stock bumps Version. Writers that work out the new stock from a row they read
+-- write it back only if Version is still what they read, so a change made in between is retried, not lost.
+ALTER TABLE Vaccines ADD Version int NOT NULL DEFAULT 0;
\ No newline at end of file
@@ -0,0 +1,14 @@
+-- V1 is the original create.sql. Password hash costs and reserved appointment ID blocks came later; databases
+-- created from the original script get them here, ones that already have them are left alone.
+IF COL_LENGTH('Caregivers', 'Iterations') IS NULL
+    ALTER TABLE Caregivers ADD Iterations int;
+
+IF COL_LENGTH('Patients', 'Iterations') IS NULL
+    ALTER TABLE Patients ADD Iterations int;
+
+IF OBJECT_ID('AppointmentIdBlocks', 'U') IS NULL
+    CREATE TABLE AppointmentIdBlocks (
+        Name varchar(64),
+        NextValue bigint NOT NULL,
+        PRIMARY KEY (Name)
+    );
\ No newline at end of file